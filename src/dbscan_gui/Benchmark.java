@@ -0,0 +1,417 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks index construction, range queries and both phases of DBSCAN over the
+ * data files and synthetic datasets, in the style of JMH. Each benchmark is warmed up
+ * before it is measured, every iteration runs the benchmark for at least a minimum time,
+ * and the result of every run is consumed so the JIT can't remove the work.
+ * Bytes allocated per operation are measured with the thread allocation counter where
+ * the JVM supports it. Results are written as JSON in the same shape as JMH's, as a single
+ * fork, so the same tooling can track regressions. Each result is written as soon as it is
+ * measured, and a case that fails, such as an unbalanced quadtree overflowing the stack on
+ * the diagonal dataset, is reported and skipped without losing the others. A value that can't be measured, such as the error
+ * of a single iteration, is written as the string "NaN" as JMH does.
+ * Usage: Benchmark [-warmup n] [-iterations n] [-time ms] [-size n] [-filter text] [-out file] [dataset...]
+ * Datasets are files in data/ or uniform, gaussian and diagonal, the default is all of them.
+ * @author Jonathan
+ *
+ */
+public class Benchmark {
+
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationNanos = 1000000000L;
+    private int syntheticSize = 100000;
+    private String filter = null;
+    /**
+     * Consumes results so that benchmarked code isn't optimised away
+     */
+    private volatile int sink;
+    private PrintWriter out;
+    private int written = 0;
+
+    /**
+     * A piece of work to time. run() is one operation.
+     */
+    private abstract class Case {
+        final String name;
+        final String mode;
+        Case(String name, String mode) {
+            this.name = name;
+            this.mode = mode;
+        }
+        abstract int run();
+    }
+
+    /**
+     * A dataset with an epsilon and minPts suited to it
+     */
+    private static class Dataset {
+        final String name;
+        final PointStore store;
+        final int epsilon;
+        final int minPts;
+        Dataset(String name, PointStore store, int epsilon, int minPts) {
+            this.name = name;
+            this.store = store;
+            this.epsilon = epsilon;
+            this.minPts = minPts;
+        }
+    }
+
+    /**
+     * Loads a file from data/ or generates a synthetic dataset
+     * @param name the file name or uniform, gaussian or diagonal
+     * @return the dataset
+     * @throws IOException if the file can't be read
+     */
+    private Dataset dataset(String name) throws IOException {
+        Random r = new Random(42);
+        int n = syntheticSize;
+        int side = 1000000;
+        // Chosen so a uniform point has about 20 neighbours
+        int epsilon = (int) (side * Math.sqrt(20.0 / (Math.PI * n)));
+        PointStore store = new PointStore(2, n);
+        if(name.equals("uniform")) {
+            for (int i = 0; i < n; i++) {
+                store.add(r.nextInt(side), r.nextInt(side));
+            }
+        } else if(name.equals("gaussian")) {
+            int blobs = 15;
+            int[] cx = new int[blobs], cy = new int[blobs];
+            for (int b = 0; b < blobs; b++) {
+                cx[b] = r.nextInt(side);
+                cy[b] = r.nextInt(side);
+            }
+            for (int i = 0; i < n; i++) {
+                int b = r.nextInt(blobs);
+                store.add(cx[b] + (int) (r.nextGaussian()*side/50), cy[b] + (int) (r.nextGaussian()*side/50));
+            }
+        } else if(name.equals("diagonal")) {
+            // Every point on one line, the worst case for an unbalanced quadtree
+            for (int i = 0; i < n; i++) {
+                store.add(i*10, i*10);
+            }
+            epsilon = 100;
+        } else {
+            store = PointLoader.load(new File("data", name));
+            epsilon = name.startsWith("europe") ? 500 : 5000;
+        }
+        return new Dataset(name, store, epsilon, 20);
+    }
+
+    /**
+     * Runs every benchmark on a dataset
+     */
+    private void benchmark(final Dataset data) {
+        final PointStore store = data.store;
+        final ArrayList<Point> points = store.toPoints();
+        final ArrayList<Point> sorted = new ArrayList<Point>(points);
+        Collections.sort(sorted, new Comparator<Point>() {
+            @Override
+            public int compare(Point p, Point q) {
+                if(p.coordinates[0] != q.coordinates[0])
+                    return Integer.compare(p.coordinates[0], q.coordinates[0]);
+                return Integer.compare(p.coordinates[1], q.coordinates[1]);
+            }
+        });
+        final int eps = data.epsilon;
+        measure(data, new Case("quadtree.build.arbitrary", "avgt") {
+            @Override
+            int run() {
+                QuadTree tree = new QuadTree();
+                for (Point p : points) {
+                    tree.add(p);
+                }
+                return tree.size();
+            }
+        });
+        measure(data, new Case("quadtree.build.sorted", "avgt") {
+            @Override
+            int run() {
+                QuadTree tree = new QuadTree();
+                for (Point p : sorted) {
+                    tree.add(p);
+                }
+                return tree.size();
+            }
+        });
+        measure(data, new Case("quadtree.build.balanced", "avgt") {
+            @Override
+            int run() {
+                return new QuadTree(new ArrayList<Point>(points)).size();
+            }
+        });
+        measure(data, new Case("kdtree.build.balanced", "avgt") {
+            @Override
+            int run() {
+                KDTree tree = new KDTree();
+                tree.build(store);
+                return tree.root == null ? 0 : 1;
+            }
+        });
+        measure(data, new Case("grid.build", "avgt") {
+            @Override
+            int run() {
+                return new GridIndex(store, eps).cellCount();
+            }
+        });
+        for (final IndexType type : IndexType.values()) {
+            if(type == IndexType.BRUTE_FORCE && store.size() > 20000)
+                continue;
+            final SpatialIndex index = type.create(eps);
+            index.build(store);
+            final IntList ids = new IntList();
+            measure(data, new Case(name(type) + ".queryCircle", "thrpt") {
+                int next = 0;
+                @Override
+                int run() {
+                    ids.clear();
+                    index.queryCircle(eps, points.get(next), ids);
+                    next = (next + 1) % points.size();
+                    return ids.size();
+                }
+            });
+            measure(data, new Case(name(type) + ".countWithin", "thrpt") {
+                int next = 0;
+                @Override
+                int run() {
+                    int count = index.countWithin(points.get(next), eps, data.minPts);
+                    next = (next + 1) % points.size();
+                    return count;
+                }
+            });
+        }
+        final KDTree kdTree = new KDTree();
+        kdTree.build(store);
+        measure(data, new Case("kdtree.rangeSearch", "thrpt") {
+            int next = 0;
+            @Override
+            int run() {
+                int found = kdTree.rangeSearch(points.get(next), eps).size();
+                next = (next + 1) % points.size();
+                return found;
+            }
+        });
+        for (final IndexType type : IndexType.values()) {
+            if(type == IndexType.BRUTE_FORCE && store.size() > 20000)
+                continue;
+            final DBSCAN dbscan = new DBSCAN();
+            dbscan.setIndexType(type);
+            dbscan.setPoints(store);
+            dbscan.indexFor(eps);
+            measure(data, new Case("dbscan.neighbours." + name(type), "avgt") {
+                @Override
+                int run() {
+                    dbscan.findNeighbours(eps, null);
+                    return dbscan.getGraph().edges();
+                }
+            });
+        }
+        final DBSCAN dbscan = new DBSCAN();
+        dbscan.setIndexType(IndexType.GRID);
+        dbscan.setPoints(store);
+        dbscan.findNeighbours(eps, null);
+        measure(data, new Case("dbscan.cluster", "avgt") {
+            @Override
+            int run() {
+                dbscan.cluster(data.minPts, null);
+                return dbscan.getClusterCount();
+            }
+        });
+    }
+
+    private static String name(IndexType type) {
+        return type.name().toLowerCase().replace("_", "");
+    }
+
+    /**
+     * Warms up and measures a benchmark, and writes its result as JSON.
+     * Average time is reported in ms/op and throughput in ops/ms.
+     */
+    private void measure(Dataset data, Case c) {
+        String name = c.name;
+        if(filter != null && !name.contains(filter))
+            return;
+        double[] scores = new double[iterations];
+        double[] allocations = new double[iterations];
+        try {
+            for (int i = 0; i < warmup; i++) {
+                iteration(c);
+            }
+            for (int i = 0; i < iterations; i++) {
+                double[] result = iteration(c);
+                scores[i] = result[0];
+                allocations[i] = result[1];
+            }
+        } catch (StackOverflowError e) {
+            System.err.format("%-32s %-12s failed: stack overflow%n", name, data.name);
+            return;
+        }
+        double mean = mean(scores);
+        double error = error(scores, mean);
+        double bytes = mean(allocations);
+        String unit = c.mode.equals("avgt") ? "ms/op" : "ops/ms";
+        System.err.format("%-32s %-12s %12.3f +- %.3f %s  %.0f B/op%n", name, data.name, mean, error, unit, bytes);
+        StringBuilder json = new StringBuilder();
+        json.append("  {\n");
+        json.append("    \"benchmark\" : \"dbscan_gui.Benchmark.").append(name).append("\",\n");
+        json.append("    \"mode\" : \"").append(c.mode).append("\",\n");
+        json.append("    \"warmupIterations\" : ").append(warmup).append(",\n");
+        json.append("    \"forks\" : 1,\n");
+        json.append("    \"measurementIterations\" : ").append(iterations).append(",\n");
+        json.append("    \"params\" : {\n");
+        json.append("      \"dataset\" : \"").append(data.name).append("\",\n");
+        json.append("      \"points\" : \"").append(data.store.size()).append("\",\n");
+        json.append("      \"epsilon\" : \"").append(data.epsilon).append("\",\n");
+        json.append("      \"minPts\" : \"").append(data.minPts).append("\"\n");
+        json.append("    },\n");
+        json.append("    \"primaryMetric\" : {\n");
+        json.append("      \"score\" : ").append(number(mean)).append(",\n");
+        json.append("      \"scoreError\" : ").append(number(error)).append(",\n");
+        json.append("      \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append("      \"rawData\" : [ [ ").append(join(scores)).append(" ] ]\n");
+        json.append("    },\n");
+        json.append("    \"secondaryMetrics\" : {\n");
+        json.append("      \"gc.alloc.rate.norm\" : {\n");
+        json.append("        \"score\" : ").append(number(bytes)).append(",\n");
+        json.append("        \"scoreError\" : ").append(number(error(allocations, bytes))).append(",\n");
+        json.append("        \"scoreUnit\" : \"B/op\",\n");
+        json.append("        \"rawData\" : [ [ ").append(join(allocations)).append(" ] ]\n");
+        json.append("      }\n");
+        json.append("    }\n");
+        json.append("  }");
+        out.println(written++ > 0 ? "," : "[");
+        out.print(json);
+        out.flush();
+    }
+
+    /**
+     * Runs the case repeatedly for at least the iteration time
+     * @return the score, and the bytes allocated per operation or NaN if they can't be measured
+     */
+    private double[] iteration(Case c) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        int consumed = 0;
+        do {
+            consumed += c.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < iterationNanos);
+        long allocatedAfter = allocatedBytes();
+        sink += consumed;
+        double millis = elapsed / 1000000.0;
+        double score = c.mode.equals("avgt") ? millis / ops : ops / millis;
+        double bytes = allocatedBefore < 0 ? Double.NaN : (double) (allocatedAfter - allocatedBefore) / ops;
+        return new double[]{score, bytes};
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM can't say
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * @return the half width of a 99.9% confidence interval on the mean, using a normal approximation
+     */
+    private static double error(double[] values, double mean) {
+        if(values.length < 2)
+            return Double.NaN;
+        double sum = 0;
+        for (double v : values) {
+            sum += (v - mean)*(v - mean);
+        }
+        return 3.291 * Math.sqrt(sum / (values.length - 1)) / Math.sqrt(values.length);
+    }
+
+    private static String join(double[] values) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if(i > 0)
+                s.append(", ");
+            s.append(number(values[i]));
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return the value as a JSON number, or the string "NaN" if it isn't finite
+     */
+    private static String number(double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value))
+            return "\"NaN\"";
+        return String.valueOf(value);
+    }
+
+    /**
+     * @param args see the class description
+     * @throws IOException if a dataset or the output can't be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        Benchmark benchmark = new Benchmark();
+        String file = null;
+        List<String> datasets = new ArrayList<String>();
+        for (int a = 0; a < args.length; a++) {
+            if(args[a].equals("-warmup") && a+1 < args.length)
+                benchmark.warmup = Integer.parseInt(args[++a]);
+            else if(args[a].equals("-iterations") && a+1 < args.length)
+                benchmark.iterations = Integer.parseInt(args[++a]);
+            else if(args[a].equals("-time") && a+1 < args.length)
+                benchmark.iterationNanos = Long.parseLong(args[++a]) * 1000000L;
+            else if(args[a].equals("-size") && a+1 < args.length)
+                benchmark.syntheticSize = Integer.parseInt(args[++a]);
+            else if(args[a].equals("-filter") && a+1 < args.length)
+                benchmark.filter = args[++a];
+            else if(args[a].equals("-out") && a+1 < args.length)
+                file = args[++a];
+            else
+                datasets.add(args[a]);
+        }
+        if(datasets.isEmpty()) {
+            for (String name : new String[]{"a1.txt", "a2.txt", "a3.txt", "europe.txt", "uniform", "gaussian", "diagonal"}) {
+                datasets.add(name);
+            }
+        }
+        benchmark.out = file == null ? new PrintWriter(System.out)
+                : new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (String name : datasets) {
+                benchmark.benchmark(benchmark.dataset(name));
+            }
+        } finally {
+            benchmark.out.println(benchmark.written > 0 ? "\n]" : "[\n]");
+            benchmark.out.close();
+        }
+    }
+}
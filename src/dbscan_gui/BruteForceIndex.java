@@ -0,0 +1,36 @@
+package dbscan_gui;
+
+/**
+ * Answers queries by measuring the distance to every point.
+ * Building is free, so it is the baseline the other indexes are compared against.
+ * Each query is a single pass of a {@link DistanceKernel} over the whole store.
+ * @author Jonathan
+ *
+ */
+public class BruteForceIndex implements SpatialIndex {
+    private PointStore store = new PointStore();
+
+    @Override
+    public void build(PointStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList ids) {
+        DistanceKernel.within(store.coords, 0, store.size(), p.coordinates, epsilon, null, ids);
+    }
+
+    @Override
+    public int countWithin(Point p, int epsilon, int limit) {
+        return DistanceKernel.count(store.coords, 0, store.size(), p.coordinates, epsilon, limit);
+    }
+
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        for (int i = 0; i < store.size(); i++) {
+            result.offer(i, DistanceKernel.squareDistance(store.coords, i, p.coordinates));
+        }
+        result.sort();
+    }
+}
@@ -0,0 +1,311 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A point quadtree with the same splitting rules as {@link QuadTree}, stored in parallel
+ * primitive arrays instead of node objects. Each distinct location is a node. Nodes are
+ * numbered in x then y order, and the ids of the points at node k are
+ * ids[first[k]] ... ids[first[k+1]-1]. The children of node k are
+ * child[4k] ... child[4k+3] for SW, NW, SE and NE, or -1 when there is no child.
+ * The tree is built balanced by taking the median location of each region as its node.
+ * Queries walk the tree with an explicit stack, one per thread, and compute the query
+ * box once, so they don't recurse or allocate. Any number of threads can query at once.
+ * @author Jonathan
+ *
+ */
+public class CompactQuadTree implements SpatialIndex, Iterable<Point> {
+    private static final int SW = 0, NW = 1, SE = 2, NE = 3;
+
+    private PointStore store;
+    private int[] x = new int[0], y = new int[0];
+    private int[] child = new int[0];
+    private int[] first = new int[1];
+    private int[] ids = new int[0];
+    private int root = -1;
+    private int nodes = 0;
+    private int depth = 0;
+    private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+    /**
+     * Creates an empty tree, use {@link #build(PointStore)} to fill it
+     */
+    public CompactQuadTree() {
+    }
+
+    @Override
+    public void build(PointStore store) {
+        this.store = store;
+        int n = store.size();
+        // Sort the locations in x then y order, flipping the sign bits so signed ints sort as unsigned
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(store.coords[0][i], store.coords[1][i]);
+        }
+        Arrays.sort(keys);
+        nodes = 0;
+        for (int k = 0; k < n; k++) {
+            if(k == 0 || keys[k] != keys[k-1])
+                keys[nodes++] = keys[k];
+        }
+        x = new int[nodes];
+        y = new int[nodes];
+        for (int k = 0; k < nodes; k++) {
+            x[k] = (int) (keys[k] >> 32) ^ Integer.MIN_VALUE;
+            y[k] = (int) keys[k] ^ Integer.MIN_VALUE;
+        }
+        // Counting sort the points by node
+        int[] node = new int[n];
+        first = new int[nodes+1];
+        for (int i = 0; i < n; i++) {
+            node[i] = Arrays.binarySearch(keys, 0, nodes, key(store.coords[0][i], store.coords[1][i]));
+            first[node[i]+1]++;
+        }
+        for (int k = 0; k < nodes; k++) {
+            first[k+1] += first[k];
+        }
+        ids = new int[n];
+        int[] next = Arrays.copyOf(first, nodes);
+        for (int i = 0; i < n; i++) {
+            ids[next[node[i]]++] = i;
+        }
+        child = new int[4*nodes];
+        Arrays.fill(child, -1);
+        int[] order = new int[nodes];
+        for (int k = 0; k < nodes; k++) {
+            order[k] = k;
+        }
+        depth = 0;
+        root = link(order, new int[nodes], 0, nodes, 1);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) (x ^ Integer.MIN_VALUE) << 32) | ((y ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    /**
+     * Makes the median of order[from..to) the node of the region, splits the rest
+     * into its quadrants keeping them in x then y order, and links each quadrant below it
+     * @return the node, or -1 if the region is empty
+     */
+    private int link(int[] order, int[] buffer, int from, int to, int level) {
+        if(from >= to)
+            return -1;
+        depth = Math.max(depth, level);
+        int mid = (from + to) >>> 1;
+        int h = order[mid];
+        int[] counts = new int[4];
+        for (int k = from; k < to; k++) {
+            if(k != mid)
+                counts[quadrant(order[k], h)]++;
+        }
+        int[] starts = {from, from + counts[0], from + counts[0] + counts[1],
+                from + counts[0] + counts[1] + counts[2], to - 1};
+        int[] fill = Arrays.copyOf(starts, 4);
+        for (int k = from; k < to; k++) {
+            if(k != mid)
+                buffer[fill[quadrant(order[k], h)]++] = order[k];
+        }
+        System.arraycopy(buffer, from, order, from, to - 1 - from);
+        for (int q = 0; q < 4; q++) {
+            child[4*h + q] = link(order, buffer, starts[q], starts[q+1], level+1);
+        }
+        return h;
+    }
+
+    /**
+     * @return the quadrant of node h that node k lies in
+     */
+    private int quadrant(int k, int h) {
+        boolean west = x[k] < x[h], south = y[k] < y[h];
+        return west ? (south ? SW : NW) : (south ? SE : NE);
+    }
+
+    /**
+     * @return this thread's stack, big enough for a walk of the whole tree
+     */
+    private int[] stack() {
+        int[] stack = stacks.get();
+        if(stack == null || stack.length < 3*depth + 2) {
+            stack = new int[3*depth + 2];
+            stacks.set(stack);
+        }
+        return stack;
+    }
+
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList result) {
+        search(p, epsilon, result, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int countWithin(Point p, int epsilon, int limit) {
+        return search(p, epsilon, null, limit);
+    }
+
+    /**
+     * Finds the points within epsilon of p, visiting only the quadrants that overlap the
+     * square around the circle
+     * @param result receives the ids found, may be null
+     * @param limit the count to stop at
+     * @return the number of points found, or at least limit if there are more
+     */
+    private int search(Point p, int epsilon, IntList result, int limit) {
+        if(root < 0)
+            return 0;
+        long px = p.coordinates[0], py = p.coordinates[1];
+        long r2 = (long) epsilon*epsilon;
+        long xmin = px - epsilon, xmax = px + epsilon;
+        long ymin = py - epsilon, ymax = py + epsilon;
+        int[] stack = stack();
+        int top = 0;
+        stack[top++] = root;
+        int count = 0;
+        while(top > 0 && count < limit) {
+            int h = stack[--top];
+            long hx = x[h], hy = y[h];
+            long dx = px - hx, dy = py - hy;
+            if(DistanceKernel.within(dx, dy, r2)) {
+                count += first[h+1] - first[h];
+                if(result != null) {
+                    for (int k = first[h]; k < first[h+1]; k++) {
+                        result.add(ids[k]);
+                    }
+                }
+            }
+            int c = 4*h;
+            boolean west = xmin < hx, east = xmax >= hx;
+            boolean south = ymin < hy, north = ymax >= hy;
+            if(west && south && child[c+SW] >= 0) stack[top++] = child[c+SW];
+            if(west && north && child[c+NW] >= 0) stack[top++] = child[c+NW];
+            if(east && south && child[c+SE] >= 0) stack[top++] = child[c+SE];
+            if(east && north && child[c+NE] >= 0) stack[top++] = child[c+NE];
+        }
+        return count;
+    }
+
+    /**
+     * Finds the k nearest points by searching the quadrant containing p first, and skipping
+     * any quadrant whose region is further away than the k'th nearest point so far.
+     */
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        nearest(root, p.coordinates[0], p.coordinates[1], result,
+                Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        result.sort();
+    }
+    private void nearest(int h, long px, long py, KNearest result, long xmin, long xmax, long ymin, long ymax) {
+        if(h < 0)
+            return;
+        long dx = px < xmin ? xmin - px : (px > xmax ? px - xmax : 0);
+        long dy = py < ymin ? ymin - py : (py > ymax ? py - ymax : 0);
+        if(DistanceKernel.squareDistance(dx, dy) > result.worst())
+            return;
+        long hx = x[h], hy = y[h];
+        long distance = DistanceKernel.squareDistance(px - hx, py - hy);
+        for (int j = first[h]; j < first[h+1]; j++) {
+            result.offer(ids[j], distance);
+        }
+        boolean west = px < hx, south = py < hy;
+        for (int i = 0; i < 4; i++) {
+            boolean w = (i & 1) == 0 ? west : !west;
+            boolean s = (i & 2) == 0 ? south : !south;
+            nearest(child[4*h + (w ? (s ? SW : NW) : (s ? SE : NE))], px, py, result,
+                    w ? xmin : hx, w ? hx - 1 : xmax,
+                    s ? ymin : hy, s ? hy - 1 : ymax);
+        }
+    }
+
+    /**
+     * @return the number of points in the tree
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the number of distinct locations, which is the number of nodes
+     */
+    public int nodeCount() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of nodes on the longest path from the root
+     */
+    public int maxDepth() {
+        return depth;
+    }
+
+    /**
+     * Iterates over the points in x then y order without copying them first.
+     * Each point is created as it is reached.
+     */
+    @Override
+    public Iterator<Point> iterator() {
+        return new Iterator<Point>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < ids.length;
+            }
+
+            @Override
+            public Point next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return store.toPoint(ids[next++]);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("The remove() operations is not supported by this Iterator.");
+            }
+        };
+    }
+
+    /**
+     * Compares the heap used and query speed of this tree and {@link QuadTree}
+     * @param args a file of points and epsilon
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: CompactQuadTree file epsilon");
+            System.exit(1);
+        }
+        PointStore store = PointLoader.load(new File(args[0]));
+        int epsilon = Integer.parseInt(args[1]);
+        for (int run = 0; run < 3; run++) {
+            for (SpatialIndex index : new SpatialIndex[]{new QuadTree(), new CompactQuadTree()}) {
+                Runtime runtime = Runtime.getRuntime();
+                System.gc();
+                long before = runtime.totalMemory() - runtime.freeMemory();
+                double start = System.nanoTime();
+                index.build(store);
+                double built = System.nanoTime();
+                System.gc();
+                long heap = runtime.totalMemory() - runtime.freeMemory() - before;
+                IntList ids = new IntList();
+                Point probe = new Point(new int[store.dimensions()]);
+                long found = 0;
+                double queried = System.nanoTime();
+                for (int i = 0; i < store.size(); i++) {
+                    ids.clear();
+                    index.queryCircle(epsilon, store.copyTo(i, probe), ids);
+                    found += ids.size();
+                }
+                double end = System.nanoTime();
+                System.out.format("%s: built in %fs using %.1fMB, queried every point in %fs finding %d%n",
+                        index.getClass().getSimpleName(), (built - start) / 1e9, heap / 1e6,
+                        (end - queried) / 1e9, found);
+            }
+        }
+    }
+}
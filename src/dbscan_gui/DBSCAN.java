@@ -0,0 +1,882 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A headless implementation of DBSCAN that can be driven by the GUI or from
+ * the command line. Clustering results are stored as a label per point,
+ * where a point's label is the index of its cluster or {@link #NOISE}.
+ *
+ * Points are referred to by their id in a {@link PointStore} and neighbourhoods
+ * are kept in a {@link NeighbourGraph}, so no per point objects are created
+ * apart from the nodes of the spatial index.
+ * In streaming mode the neighbourhoods are not stored at all. Instead the index is
+ * queried for a point's neighbourhood when the point is expanded, so memory use is
+ * bounded by the number of points rather than the number of neighbour pairs.
+ * Core points are found with a count query that stops after minPts points.
+ * In parallel mode every available processor is used. Core points are found
+ * concurrently and neighbouring core points are merged in a shared {@link UnionFind}.
+ * The clusters of core points are the same as the sequential algorithm's, but a
+ * border point next to several clusters may be given to a different one of them.
+ * In incremental mode the core points and their merged sets are kept between calls
+ * to {@link #cluster(int, Monitor)}, so when only minPts changes just the points whose
+ * core status flips are looked at. Lowering minPts merges the new core points into
+ * the existing sets, raising it splits up only the sets that lost a core point.
+ * When a {@link SpaceFillingCurve} is set the points are copied in the order they lie
+ * along it, so points that are near each other have nearby ids and both phases walk
+ * through space instead of jumping about it. Ids then refer to the reordered points,
+ * and {@link #inputId(int)} and {@link #getInputOrderLabels()} map back to the input.
+ * An instance keeps its working buffers between runs, so a single engine can
+ * be used to cluster many datasets one after the other without reallocating.
+ * @author Jonathan
+ *
+ */
+public class DBSCAN {
+
+    /**
+     * The label given to points that do not belong to any cluster
+     */
+    public static final int NOISE = -1;
+    private static final int UNCLASSIFIED = -2;
+
+    private PointStore store = new PointStore();
+    private SpatialIndex index = null;
+    private IndexType indexType = IndexType.QUADTREE;
+    private int indexEpsilon;
+    private NeighbourGraph graph = new NeighbourGraph();
+    private int[] labels = new int[0];
+    private int[] queue = new int[0];
+    private int clusterCount = 0;
+    private int noiseCount = 0;
+    private boolean streaming = false;
+    private boolean parallel = false;
+    private ForkJoinPool pool;
+    private boolean[] core = new boolean[0];
+    private final UnionFind coreSets = new UnionFind();
+    private boolean incremental = false;
+    private SpaceFillingCurve curve = null;
+    /**
+     * The id in the input store of each point, or null if the points are in input order
+     */
+    private int[] inputIds = null;
+    /**
+     * The minPts that core and coreSets were last computed for, or 0 if they are out of date
+     */
+    private int coreMinPts = 0;
+    /**
+     * Point ids sorted by the size of their neighbourhood, largest first,
+     * so the core points for any minPts are a prefix
+     */
+    private int[] byDegree = new int[0];
+    private boolean[] affected = new boolean[0];
+    /**
+     * The number of points given to each task when clustering in parallel
+     */
+    private static final int GRAIN = 1024;
+    private int epsilon = 0;
+    private final IntList neighbours = new IntList();
+    private Point probe = new Point(0, 0);
+
+    /**
+     * Receives progress updates from a long running phase of the algorithm
+     * and tells the engine when to stop early.
+     * @author Jonathan
+     *
+     */
+    public interface Monitor {
+        /**
+         * @return true if the current phase should be abandoned
+         */
+        boolean isCancelled();
+        /**
+         * @param done the number of points processed so far
+         * @param total the number of points to process
+         */
+        void progress(int done, int total);
+    }
+
+    /**
+     * Sets the points to cluster. Any previous neighbours and clusters are discarded.
+     * A point's id in the store is also its index in the label array.
+     * If a curve is set the points are reordered along it first.
+     * @param store the points to cluster
+     */
+    public void setPoints(PointStore store) {
+        if(curve != null) {
+            inputIds = curve.order(store);
+            store = store.reorder(inputIds);
+        } else {
+            inputIds = null;
+        }
+        this.store = store;
+        index = null;
+        coreMinPts = 0;
+        probe = new Point(new int[store.dimensions()]);
+        graph.clear();
+        if(labels.length < store.size()) {
+            labels = new int[store.size()];
+            queue = new int[store.size()];
+        }
+        clearClusters();
+    }
+
+    /**
+     * Sorts the points along a space filling curve when they are set, so that
+     * neighbourhoods are found and expanded in an order that keeps nearby points
+     * together in memory. Takes effect the next time points are set.
+     * @param curve the curve, or null to keep the input order
+     */
+    public void setCurve(SpaceFillingCurve curve) {
+        this.curve = curve;
+    }
+
+    /**
+     * @return the curve points are sorted along, or null if they are kept in input order
+     */
+    public SpaceFillingCurve getCurve() {
+        return curve;
+    }
+
+    /**
+     * In streaming mode neighbourhoods are queried from the index while clustering
+     * instead of being found up front. This trades repeated queries for memory.
+     * @param streaming true to query neighbourhoods on demand
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        graph.clear();
+        coreMinPts = 0;
+    }
+
+    /**
+     * @return true if neighbourhoods are queried on demand
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param parallel true to use every available processor
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+        if(parallel && pool == null)
+            pool = new ForkJoinPool();
+    }
+
+    /**
+     * @return true if every available processor is used
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Incremental mode keeps the core points between clusterings, so changing only minPts
+     * is quick. It has no effect in streaming mode, and takes the place of parallel clustering.
+     * @param incremental true to recluster incrementally
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        coreMinPts = 0;
+    }
+
+    /**
+     * @return true if clustering reuses the core points of the last clustering
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Keeps the distance to every neighbour, so that after neighbours have been found
+     * for one epsilon any smaller epsilon can be served without querying the index again.
+     * @param sweep true to keep distances from the next neighbour search on
+     */
+    public void setEpsilonSweep(boolean sweep) {
+        graph.setKeepDistances(sweep);
+        coreMinPts = 0;
+    }
+
+    /**
+     * @return true if neighbour distances are kept
+     */
+    public boolean isEpsilonSweep() {
+        return graph.isKeepingDistances();
+    }
+
+    /**
+     * @param epsilon a neighbourhood radius
+     * @return true if the neighbours found already cover epsilon, so finding
+     * neighbours for it won't query the index
+     */
+    public boolean coversEpsilon(int epsilon) {
+        return !streaming && graph.covers(epsilon);
+    }
+
+    /**
+     * @param epsilon a neighbourhood radius
+     * @return true if the neighbours of the current points have been found for epsilon,
+     * or cover it, so they can be clustered without finding them again
+     */
+    public boolean hasNeighbours(int epsilon) {
+        if(streaming)
+            return index != null && epsilon == this.epsilon;
+        return graph.size() == store.size()
+                && (graph.epsilon() == epsilon || graph.covers(epsilon));
+    }
+
+    /**
+     * Chooses the kind of index used to find neighbourhoods.
+     * The index is built the next time neighbours are found.
+     * @param type the kind of index
+     */
+    public void setIndexType(IndexType type) {
+        if(type != indexType)
+            index = null;
+        indexType = type;
+    }
+
+    /**
+     * @return the kind of index used to find neighbourhoods
+     */
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * Builds the index of the points if there isn't one suitable for epsilon
+     * @param epsilon the neighbourhood radius
+     * @throws IllegalArgumentException if the kind of index can't hold points of this many dimensions
+     */
+    private void prepareIndex(int epsilon) {
+        if(index == null || (indexType.tunedToEpsilon() && indexEpsilon != epsilon)) {
+            if(!indexType.supports(store.dimensions()))
+                throw new IllegalArgumentException("A " + indexType + " can't index "
+                        + store.dimensions() + " dimensional points");
+            index = indexType.create(epsilon);
+            index.build(store);
+            indexEpsilon = epsilon;
+        }
+    }
+
+    /**
+     * Uses an index that has already been built from the current points,
+     * such as one loaded by {@link IndexSnapshot}
+     * @param type the kind of index
+     * @param index the index
+     */
+    public void setIndex(IndexType type, SpatialIndex index) {
+        indexType = type;
+        this.index = index;
+        graph.clear();
+        coreMinPts = 0;
+    }
+
+    /**
+     * Builds the index if needed, so it can be shared with other algorithms such as {@link OPTICS}
+     * @param epsilon the radius the index will be queried with
+     * @return an index of the current points
+     */
+    public SpatialIndex indexFor(int epsilon) {
+        prepareIndex(epsilon);
+        return index;
+    }
+
+    /**
+     * @return the index of the points, or null if it hasn't been built yet
+     */
+    public SpatialIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Finds the neighbours of every point that lie within epsilon.
+     * In streaming mode this only records epsilon. If the neighbours found already
+     * cover epsilon they are truncated to it instead, see {@link #setEpsilonSweep(boolean)}.
+     * @param epsilon the neighbourhood radius
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the search
+     * @throws IllegalArgumentException if the kind of index can't hold points of this many dimensions
+     */
+    public boolean findNeighbours(int epsilon, Monitor monitor) {
+        clearClusters();
+        this.epsilon = epsilon;
+        coreMinPts = 0;
+        if(coversEpsilon(epsilon)) {
+            graph.truncate(epsilon);
+            return true;
+        }
+        prepareIndex(epsilon);
+        if(streaming) {
+            graph.clear();
+            return true;
+        }
+        if(parallel)
+            return graph.build(store, index, epsilon, pool, monitor);
+        return graph.build(store, index, epsilon, monitor);
+    }
+
+    /**
+     * Implements DBSCAN over the previously found neighbours.
+     * Adapted from pseudocode at http://en.wikipedia.org/wiki/DBSCAN
+     * A point is a core point if it has at least minPts points in its neighbourhood,
+     * including itself.
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the clustering
+     * @throws IllegalStateException if the neighbours of the current points haven't been found
+     */
+    public boolean cluster(int minPts, Monitor monitor) {
+        if(!hasNeighbours(epsilon))
+            throw new IllegalStateException("The neighbours of the current points haven't been found");
+        clearClusters();
+        if(incremental && !streaming)
+            return clusterIncremental(minPts, monitor);
+        if(parallel)
+            return clusterParallel(minPts, monitor);
+        int n = store.size();
+        int clustered = 0;
+        for (int i = 0; i < n; i++) {
+            if(monitor != null && (i & 0xff) == 0) {
+                if(monitor.isCancelled())
+                    return false;
+                monitor.progress(clustered, n);
+            }
+            if(labels[i] != UNCLASSIFIED)
+                continue;
+            int c = clusterCount;
+            int tail = expand(i, c, minPts, 0);
+            clustered++;
+            if(tail < 0) {
+                labels[i] = NOISE;
+                noiseCount++;
+                continue;
+            }
+            clusterCount++;
+            labels[i] = c;
+            int head = 0;
+            while(head < tail) {
+                int q = queue[head++];
+                clustered++;
+                int t = expand(q, c, minPts, tail);
+                if(t >= 0)
+                    tail = t;
+            }
+        }
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+
+    /**
+     * Implements DBSCAN on the pool. Core points are found first, then every pair of
+     * neighbouring core points is merged, and finally each border point joins the
+     * cluster of one of its core neighbours.
+     * The smallest id in each set of merged core points is its root, so numbering the
+     * roots in order of id gives the same cluster numbers as {@link #cluster(int, Monitor)}.
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the clustering
+     */
+    private boolean clusterParallel(final int minPts, Monitor monitor) {
+        final int n = store.size();
+        if(core.length < n)
+            core = new boolean[n];
+        coreSets.reset(n);
+        boolean completed = Parallel.forRange(pool, n, GRAIN, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                Point probe = new Point(new int[store.dimensions()]);
+                for (int i = from; i < to; i++) {
+                    core[i] = isCore(i, minPts, probe);
+                }
+            }
+        }, monitor);
+        completed = completed && Parallel.forRange(pool, n, GRAIN, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                IntList buffer = new IntList();
+                Point probe = new Point(new int[store.dimensions()]);
+                for (int i = from; i < to; i++) {
+                    if(!core[i])
+                        continue;
+                    neighbours(i, buffer, probe);
+                    for (int k = 0; k < buffer.size(); k++) {
+                        int j = buffer.get(k);
+                        // Each edge is seen from both ends, only merge it once
+                        if(j > i && core[j])
+                            coreSets.union(i, j);
+                    }
+                }
+            }
+        }, monitor);
+        // Border points temporarily hold the id of a neighbouring core point
+        completed = completed && Parallel.forRange(pool, n, GRAIN, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                IntList buffer = new IntList();
+                Point probe = new Point(new int[store.dimensions()]);
+                for (int i = from; i < to; i++) {
+                    if(core[i])
+                        continue;
+                    labels[i] = NOISE;
+                    neighbours(i, buffer, probe);
+                    for (int k = 0; k < buffer.size(); k++) {
+                        if(core[buffer.get(k)]) {
+                            labels[i] = buffer.get(k);
+                            break;
+                        }
+                    }
+                }
+            }
+        }, monitor);
+        if(!completed) {
+            clearClusters();
+            return false;
+        }
+        numberClusters(n);
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+
+    /**
+     * Gives each set of merged core points a cluster number, in order of the set's
+     * smallest id, and labels every point with the number of its set. Border points
+     * must hold the id of a neighbouring core point, and noise points {@link #NOISE}.
+     * @param n the number of points
+     */
+    private void numberClusters(int n) {
+        // The queue maps each root to its cluster number
+        for (int i = 0; i < n; i++) {
+            if(core[i] && coreSets.find(i) == i)
+                queue[i] = clusterCount++;
+        }
+        for (int i = 0; i < n; i++) {
+            if(core[i]) {
+                labels[i] = queue[coreSets.find(i)];
+            } else if(labels[i] == NOISE) {
+                noiseCount++;
+            } else {
+                labels[i] = queue[coreSets.find(labels[i])];
+            }
+        }
+    }
+
+    /**
+     * Clusters by updating the core points of the last clustering, see {@link #setIncremental(boolean)}.
+     * Gives the same clusters as {@link #clusterParallel(int, Monitor)}.
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the clustering
+     */
+    private boolean clusterIncremental(int minPts, Monitor monitor) {
+        int n = store.size();
+        if(coreMinPts == 0) {
+            // Start from no core points at all and lower minPts from there
+            sortByDegree(n);
+            if(core.length < n)
+                core = new boolean[n];
+            if(affected.length < n)
+                affected = new boolean[n];
+            Arrays.fill(core, 0, n, false);
+            coreSets.reset(n);
+            coreMinPts = Integer.MAX_VALUE;
+        }
+        int cores = coreCount(minPts, n);
+        int oldCores = coreCount(coreMinPts, n);
+        if(cores > oldCores) {
+            for (int r = oldCores; r < cores; r++) {
+                core[byDegree[r]] = true;
+            }
+            for (int r = oldCores; r < cores; r++) {
+                unionCoreNeighbours(byDegree[r]);
+            }
+        } else if(cores < oldCores) {
+            // Split up every set that is losing a core point, then merge what is left of them
+            for (int r = cores; r < oldCores; r++) {
+                affected[coreSets.find(byDegree[r])] = true;
+            }
+            IntList members = new IntList();
+            for (int i = 0; i < n; i++) {
+                if(core[i] && affected[coreSets.find(i)])
+                    members.add(i);
+            }
+            for (int k = 0; k < members.size(); k++) {
+                affected[members.get(k)] = false;
+                coreSets.makeSet(members.get(k));
+            }
+            for (int r = cores; r < oldCores; r++) {
+                core[byDegree[r]] = false;
+            }
+            for (int k = 0; k < members.size(); k++) {
+                if(core[members.get(k)])
+                    unionCoreNeighbours(members.get(k));
+            }
+        }
+        coreMinPts = minPts;
+        // Border points take the first core point in their neighbourhood
+        for (int i = 0; i < n; i++) {
+            if(monitor != null && (i & 0xff) == 0) {
+                if(monitor.isCancelled()) {
+                    clearClusters();
+                    return false;
+                }
+                monitor.progress(i, n);
+            }
+            if(core[i])
+                continue;
+            labels[i] = NOISE;
+            for (int k = graph.start(i); k < graph.end(i); k++) {
+                if(core[graph.neighbour(k)]) {
+                    labels[i] = graph.neighbour(k);
+                    break;
+                }
+            }
+        }
+        numberClusters(n);
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+
+    /**
+     * Merges a core point's set with those of its core neighbours
+     * @param id a core point
+     */
+    private void unionCoreNeighbours(int id) {
+        for (int k = graph.start(id); k < graph.end(id); k++) {
+            if(core[graph.neighbour(k)])
+                coreSets.union(id, graph.neighbour(k));
+        }
+    }
+
+    /**
+     * Counting sorts the points by degree into byDegree, largest first
+     * @param n the number of points
+     */
+    private void sortByDegree(int n) {
+        int maxDegree = 0;
+        for (int i = 0; i < n; i++) {
+            maxDegree = Math.max(maxDegree, graph.degree(i));
+        }
+        int[] start = new int[maxDegree+2];
+        for (int i = 0; i < n; i++) {
+            start[maxDegree - graph.degree(i) + 1]++;
+        }
+        for (int d = 0; d <= maxDegree; d++) {
+            start[d+1] += start[d];
+        }
+        if(byDegree.length < n)
+            byDegree = new int[n];
+        for (int i = 0; i < n; i++) {
+            byDegree[start[maxDegree - graph.degree(i)]++] = i;
+        }
+    }
+
+    /**
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param n the number of points
+     * @return the number of core points, which are the first ones in byDegree
+     */
+    private int coreCount(int minPts, int n) {
+        int low = 0, high = n;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(graph.degree(byDegree[mid])+1 >= minPts)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Tests if a point is a core point. Safe to call from several threads.
+     * @param id the point to test
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param probe a point used to query the index
+     * @return true if the point is a core point
+     */
+    private boolean isCore(int id, int minPts, Point probe) {
+        if(streaming)
+            return index.countWithin(store.copyTo(id, probe), epsilon, minPts) >= minPts;
+        return graph.degree(id)+1 >= minPts;
+    }
+
+    /**
+     * Puts the neighbours of a point, not including itself, in the buffer.
+     * Safe to call from several threads.
+     * @param id the point
+     * @param buffer the list to fill, it is cleared first
+     * @param probe a point used to query the index
+     */
+    private void neighbours(int id, IntList buffer, Point probe) {
+        buffer.clear();
+        if(streaming) {
+            index.queryCircle(epsilon, store.copyTo(id, probe), buffer);
+            // Remove the point itself by swapping in the last neighbour
+            for (int k = 0; k < buffer.size(); k++) {
+                if(buffer.data[k] == id) {
+                    buffer.data[k] = buffer.data[--buffer.size];
+                    break;
+                }
+            }
+        } else {
+            for (int k = graph.start(id); k < graph.end(id); k++) {
+                buffer.add(graph.neighbour(k));
+            }
+        }
+    }
+
+    /**
+     * If the point is a core point, all of its neighbours are claimed by cluster c
+     * @param id the point to expand
+     * @param c the cluster
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param tail the end of the expansion queue
+     * @return the new end of the expansion queue, or -1 if the point is not a core point
+     */
+    private int expand(int id, int c, int minPts, int tail) {
+        if(streaming) {
+            // Both queries include the point itself
+            store.copyTo(id, probe);
+            if(index.countWithin(probe, epsilon, minPts) < minPts)
+                return -1;
+            neighbours.clear();
+            index.queryCircle(epsilon, probe, neighbours);
+            for (int k = 0; k < neighbours.size(); k++) {
+                int j = neighbours.get(k);
+                if(j != id)
+                    tail = claim(j, c, tail);
+            }
+        } else {
+            if(graph.degree(id)+1 < minPts)
+                return -1;
+            for (int k = graph.start(id); k < graph.end(id); k++) {
+                tail = claim(graph.neighbour(k), c, tail);
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Adds the point to cluster c. Unclassified points are queued for expansion,
+     * noise points become border points of the cluster.
+     * @param id the point to add
+     * @param c the cluster
+     * @param tail the end of the expansion queue
+     * @return the new end of the expansion queue
+     */
+    private int claim(int id, int c, int tail) {
+        if(labels[id] == UNCLASSIFIED) {
+            labels[id] = c;
+            queue[tail++] = id;
+        } else if(labels[id] == NOISE) {
+            labels[id] = c;
+            noiseCount--;
+        }
+        return tail;
+    }
+
+    /**
+     * Runs both phases of DBSCAN over the points
+     * @param store the points to cluster
+     * @param epsilon the neighbourhood radius
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @return the label of each point, indexed by its id in the given store.
+     * Unless the points were reordered the array is reused by the next run and may be longer than the store.
+     */
+    public int[] run(PointStore store, int epsilon, int minPts) {
+        setPoints(store);
+        findNeighbours(epsilon, null);
+        cluster(minPts, null);
+        return inputIds == null ? labels : getInputOrderLabels();
+    }
+
+    /**
+     * Resets every point to being unclassified
+     */
+    public void clearClusters() {
+        for (int i = 0; i < store.size(); i++) {
+            labels[i] = UNCLASSIFIED;
+        }
+        clusterCount = 0;
+        noiseCount = 0;
+    }
+
+    /**
+     * @return the points being clustered
+     */
+    public PointStore getPoints() {
+        return store;
+    }
+
+    /**
+     * @return the neighbourhoods found by {@link #findNeighbours(int, Monitor)}
+     */
+    public NeighbourGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the label of each point, indexed by point id
+     */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * @param id the id of a point
+     * @return the id the point had in the store passed to {@link #setPoints(PointStore)}
+     */
+    public int inputId(int id) {
+        return inputIds == null ? id : inputIds[id];
+    }
+
+    /**
+     * @return a new array holding the label of each point indexed by its id in the
+     * store passed to {@link #setPoints(PointStore)}
+     */
+    public int[] getInputOrderLabels() {
+        int n = store.size();
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[inputId(i)] = labels[i];
+        }
+        return result;
+    }
+
+    /**
+     * @param id the id of the point
+     * @return the cluster the point belongs to, or {@link #NOISE}
+     */
+    public int label(int id) {
+        return labels[id];
+    }
+
+    /**
+     * @return the number of clusters found by the last run
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * @return the number of noise points found by the last run
+     */
+    public int getNoiseCount() {
+        return noiseCount;
+    }
+
+    /**
+     * Clusters a file of points from the command line.
+     * Usage: DBSCAN [-stream] [-parallel] [-index quadtree|compact_quadtree|pr_quadtree|kdtree|grid|brute_force] [-curve morton|hilbert] [-snapshot index] file epsilon minPts
+     * -parallel finds neighbourhoods and clusters using every processor
+     * -index chooses the spatial index, the default is a quadtree, or a KD tree if the points aren't 2D
+     * -curve sorts the points along a space filling curve before clustering
+     * -snapshot loads the index from a file if it exists, otherwise the index is saved there once built
+     * @param args
+     */
+    public static void main(String[] args) {
+        DBSCAN dbscan = new DBSCAN();
+        int a = 0;
+        File snapshot = null;
+        boolean indexChosen = false;
+        for (; a < args.length && args[a].startsWith("-"); a++) {
+            if(args[a].equals("-stream"))
+                dbscan.setStreaming(true);
+            else if(args[a].equals("-parallel"))
+                dbscan.setParallel(true);
+            else if(args[a].equals("-index") && a+1 < args.length) {
+                try {
+                    dbscan.setIndexType(IndexType.valueOf(args[++a].toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+                indexChosen = true;
+            }
+            else if(args[a].equals("-curve") && a+1 < args.length) {
+                try {
+                    dbscan.setCurve(SpaceFillingCurve.valueOf(args[++a].toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            }
+            else if(args[a].equals("-snapshot") && a+1 < args.length)
+                snapshot = new File(args[++a]);
+        }
+        if(args.length - a < 3)
+            usage();
+        String file = args[a];
+        int epsilon = Integer.parseInt(args[a+1]);
+        int minPts = Integer.parseInt(args[a+2]);
+        PointStore points = null;
+        try {
+            points = PointLoader.load(new File(file));
+        } catch (IOException e) {
+            System.err.println("Could not load file "+file+", "+e.getMessage());
+            System.exit(1);
+        }
+        if(!dbscan.getIndexType().supports(points.dimensions())) {
+            if(!indexChosen) {
+                dbscan.setIndexType(IndexType.KDTREE);
+            } else {
+                System.err.println("A "+dbscan.getIndexType()+" can't index "+points.dimensions()
+                        +" dimensional points, use -index kdtree or grid");
+                System.exit(1);
+            }
+        }
+        double start = System.nanoTime();
+        dbscan.setPoints(points);
+        boolean loaded = false;
+        if(snapshot != null && snapshot.exists()) {
+            try {
+                SpatialIndex index = IndexSnapshot.load(snapshot, dbscan.getPoints());
+                dbscan.setIndex(IndexSnapshot.typeOf(index), index);
+                loaded = true;
+            } catch (IOException e) {
+                System.err.println("Could not load index "+snapshot+", "+e.getMessage());
+            } catch (InputMismatchException e) {
+                System.err.println("Could not load index "+snapshot+", "+e.getMessage());
+            }
+        }
+        dbscan.findNeighbours(epsilon, null);
+        dbscan.cluster(minPts, null);
+        if(snapshot != null && !loaded) {
+            try {
+                IndexSnapshot.save(dbscan.getIndex(), dbscan.getPoints(), snapshot);
+            } catch (IOException e) {
+                System.err.println("Could not save index "+snapshot+", "+e.getMessage());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Could not save index "+snapshot+", "+e.getMessage());
+            }
+        }
+        System.out.format("Found %d clusters from %d points in %fs.%n%d noise%n",
+                dbscan.getClusterCount(), points.size(),
+                (System.nanoTime() - start) / 1000000000.0,
+                dbscan.getNoiseCount());
+    }
+
+    /**
+     * Prints the command line usage, listing every kind of index and curve, and exits
+     */
+    private static void usage() {
+        StringBuilder indexes = new StringBuilder();
+        for (IndexType type : IndexType.values()) {
+            indexes.append(indexes.length() == 0 ? "" : "|").append(type.name().toLowerCase());
+        }
+        StringBuilder curves = new StringBuilder();
+        for (SpaceFillingCurve curve : SpaceFillingCurve.values()) {
+            curves.append(curves.length() == 0 ? "" : "|").append(curve.name().toLowerCase());
+        }
+        System.err.println("Usage: DBSCAN [-stream] [-parallel] [-index "+indexes+"] [-curve "+curves
+                +"] [-snapshot index] file epsilon minPts");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,175 @@
+package dbscan_gui;
+
+/**
+ * Distance tests over runs of points stored column by column, as in {@link PointStore},
+ * a grid cell or a tree leaf. Squared distances are computed exactly in long arithmetic
+ * and compared to epsilon squared, so there is no rounding and no square root.
+ * Two int coordinates can differ by up to 2^32, whose square doesn't fit in a long, so a
+ * point is only summed once it is within range on every axis. In two dimensions that is
+ * a difference under 2^31, which is more than any int epsilon and keeps the sum under 2^63.
+ * Distances that are too large for a long are reported as Long.MAX_VALUE.
+ * The two dimensional kernels read the x and y columns straight through without a loop
+ * over the axes, which keeps the loop body small enough for the JIT to unroll.
+ * Other dimensions fall back to summing axis by axis, stopping once the sum passes epsilon squared.
+ * @author Jonathan
+ *
+ */
+public final class DistanceKernel {
+    /**
+     * The largest difference whose square fits in a long
+     */
+    private static final long MAX_DIFF = 3037000499L;
+
+    private DistanceKernel() {
+    }
+
+    /**
+     * @return the squared distance between two coordinate arrays of the same length,
+     * or Long.MAX_VALUE if it doesn't fit in a long
+     */
+    public static long squareDistance(int[] p, int[] q) {
+        long sum = 0;
+        for (int d = 0; d < p.length; d++) {
+            sum = add(sum, (long) p[d] - q[d]);
+        }
+        return sum;
+    }
+
+    /**
+     * @param coords one array per axis
+     * @param k the index of a point in the columns
+     * @param q the coordinates of the query point
+     * @return the squared distance from q to point k, or Long.MAX_VALUE if it doesn't fit in a long
+     */
+    public static long squareDistance(int[][] coords, int k, int[] q) {
+        long sum = 0;
+        for (int d = 0; d < q.length; d++) {
+            sum = add(sum, (long) q[d] - coords[d][k]);
+        }
+        return sum;
+    }
+
+    /**
+     * @param dx the difference on the first axis
+     * @param dy the difference on the second axis
+     * @return dx*dx + dy*dy, or Long.MAX_VALUE if it doesn't fit in a long
+     */
+    public static long squareDistance(long dx, long dy) {
+        return add(add(0, dx), dy);
+    }
+
+    /**
+     * @param sum a squared distance so far, not negative
+     * @param diff the difference on one more axis
+     * @return sum + diff*diff, saturating at Long.MAX_VALUE
+     */
+    static long add(long sum, long diff) {
+        if(diff > MAX_DIFF || diff < -MAX_DIFF)
+            return Long.MAX_VALUE;
+        sum += diff*diff;
+        // Both terms are positive, so an overflow always wraps to a negative
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * @param dx the difference on the first axis
+     * @param dy the difference on the second axis
+     * @param r2 epsilon squared, for an int epsilon
+     * @return true if dx*dx + dy*dy is at most epsilon squared
+     */
+    public static boolean within(long dx, long dy, long r2) {
+        // A difference of 2^31 or more is further than any int epsilon, and would overflow the sum
+        return (Math.abs(dx) | Math.abs(dy)) <= Integer.MAX_VALUE && dx*dx + dy*dy <= r2;
+    }
+
+    /**
+     * Appends ids[k] to the list for every point k from..to-1 within epsilon of q
+     * @param coords one array per axis
+     * @param from the first point to test
+     * @param to one past the last point to test
+     * @param q the coordinates of the query point
+     * @param epsilon the radius
+     * @param ids the id of each point in the columns, or null to append k itself
+     * @param out the list to append to
+     */
+    public static void within(int[][] coords, int from, int to, int[] q, int epsilon, int[] ids, IntList out) {
+        if(q.length == 2) {
+            within(coords[0], coords[1], from, to, q[0], q[1], epsilon, ids, out);
+            return;
+        }
+        long r2 = (long) epsilon*epsilon;
+        for (int k = from; k < to; k++) {
+            if(isWithin(coords, k, q, epsilon, r2))
+                out.add(ids == null ? k : ids[k]);
+        }
+    }
+
+    /**
+     * The two dimensional case of {@link #within(int[][], int, int, int[], int, int[], IntList)}
+     */
+    public static void within(int[] xs, int[] ys, int from, int to, long px, long py, int epsilon, int[] ids, IntList out) {
+        long r2 = (long) epsilon*epsilon;
+        for (int k = from; k < to; k++) {
+            long dx = px - xs[k], dy = py - ys[k];
+            if(within(dx, dy, r2))
+                out.add(ids == null ? k : ids[k]);
+        }
+    }
+
+    /**
+     * Counts the points from..to-1 within epsilon of q, stopping once limit is reached
+     * @param coords one array per axis
+     * @param from the first point to test
+     * @param to one past the last point to test
+     * @param q the coordinates of the query point
+     * @param epsilon the radius
+     * @param limit the count to stop at
+     * @return the number of points within epsilon, at most limit
+     */
+    public static int count(int[][] coords, int from, int to, int[] q, int epsilon, int limit) {
+        if(q.length == 2)
+            return count(coords[0], coords[1], from, to, q[0], q[1], epsilon, limit);
+        long r2 = (long) epsilon*epsilon;
+        int count = 0;
+        for (int k = from; k < to && count < limit; k++) {
+            if(isWithin(coords, k, q, epsilon, r2))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * The two dimensional case of {@link #count(int[][], int, int, int[], int, int)}.
+     * The points are counted in blocks without a branch per point, checking the limit
+     * between blocks.
+     */
+    public static int count(int[] xs, int[] ys, int from, int to, long px, long py, int epsilon, int limit) {
+        long r2 = (long) epsilon*epsilon;
+        int count = 0;
+        int k = from;
+        while(k < to && count < limit) {
+            int end = Math.min(to, k + 16);
+            for (; k < end; k++) {
+                long dx = px - xs[k], dy = py - ys[k];
+                count += within(dx, dy, r2) ? 1 : 0;
+            }
+        }
+        return Math.min(count, limit);
+    }
+
+    /**
+     * @return true if point k is within epsilon of q, stopping once the sum passes r2
+     */
+    private static boolean isWithin(int[][] coords, int k, int[] q, int epsilon, long r2) {
+        long sum = 0;
+        for (int d = 0; d < q.length; d++) {
+            long diff = (long) q[d] - coords[d][k];
+            if(diff > epsilon || diff < -epsilon)
+                return false;
+            sum += diff*diff;
+            if(sum > r2)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,299 @@
+package dbscan_gui;
+
+import java.util.Arrays;
+
+/**
+ * Buckets points into a uniform grid over the first two axes. When the cell size is
+ * the same as epsilon a neighbourhood query only has to look at the 3x3 block of
+ * cells around the query point.
+ * Points are sorted by cell, and their coordinates copied into that order, so the
+ * points of a cell are contiguous in memory. Cells are numbered row by row and
+ * looked up in a dense table when the grid is small enough, otherwise in a hash table
+ * holding only the cells that have points.
+ * Each cell is tested with a {@link DistanceKernel} pass over its run of coordinates.
+ * @author Jonathan
+ *
+ */
+public class GridIndex implements SpatialIndex {
+    /**
+     * The most rows or columns the grid will have, the cell size is increased to fit
+     */
+    private static final int MAX_SIDE = 1 << 22;
+    private final int epsilon;
+    private int cellSize;
+    private int minX, minY;
+    private int columns, rows;
+    private int dimensions;
+    // The points ordered by cell, with their coordinates in the same order
+    private int[] ids;
+    private int[][] coords;
+    // The points of the i'th non empty cell are at start[i] ... start[i+1]-1
+    private int[] start;
+    // Either a dense table from cell number to non empty cell index, or -1 if empty.
+    private int[] dense;
+    // Or an open addressing hash table from cell number to non empty cell index
+    private long[] hashKeys;
+    private int[] hashCells;
+
+    /**
+     * Creates an empty grid
+     * @param cellSize the side of each cell, normally epsilon
+     */
+    public GridIndex(int cellSize) {
+        this.epsilon = Math.max(cellSize, 1);
+        build(new PointStore());
+    }
+
+    /**
+     * Builds a grid of the points in the store
+     * @param store the points
+     * @param cellSize the side of each cell, normally epsilon
+     */
+    public GridIndex(PointStore store, int cellSize) {
+        this.epsilon = Math.max(cellSize, 1);
+        build(store);
+    }
+
+    @Override
+    public void build(PointStore store) {
+        int n = store.size();
+        dimensions = store.dimensions();
+        int yAxis = Math.min(1, dimensions-1);
+        minX = store.min(0);
+        minY = store.min(yAxis);
+        long width  = (long) store.max(0) - minX + 1;
+        long height = (long) store.max(yAxis) - minY + 1;
+        long size = Math.max(epsilon, (Math.max(width, height) + MAX_SIDE - 1) / MAX_SIDE);
+        this.cellSize = (int) Math.min(size, Integer.MAX_VALUE);
+        columns = (int) ((width  + this.cellSize - 1) / this.cellSize);
+        rows    = (int) ((height + this.cellSize - 1) / this.cellSize);
+
+        // Radix sort the points by column then row, leaving them in cell number order
+        int[] byColumn = countingSort(identity(n), columnsOf(store), columns);
+        int[] cellRows = rowsOf(store, yAxis);
+        ids = countingSort(byColumn, cellRows, rows);
+
+        coords = new int[dimensions][n];
+        long[] keys = new long[n];
+        int cells = 0;
+        for (int k = 0; k < n; k++) {
+            int i = ids[k];
+            for (int d = 0; d < dimensions; d++) {
+                coords[d][k] = store.get(i, d);
+            }
+            keys[k] = cellNumber(column(store.get(i, 0)), row(store.get(i, yAxis)));
+            if(k == 0 || keys[k] != keys[k-1])
+                cells++;
+        }
+        start = new int[cells+1];
+        long[] cellKeys = new long[cells];
+        int c = 0;
+        for (int k = 0; k < n; k++) {
+            if(k == 0 || keys[k] != keys[k-1]) {
+                cellKeys[c] = keys[k];
+                start[c++] = k;
+            }
+        }
+        start[cells] = n;
+
+        dense = null;
+        hashKeys = null;
+        hashCells = null;
+        if((long) columns * rows <= 4L * Math.max(n, 16)) {
+            dense = new int[columns*rows];
+            Arrays.fill(dense, -1);
+            for (c = 0; c < cells; c++) {
+                dense[(int) cellKeys[c]] = c;
+            }
+        } else {
+            int capacity = Integer.highestOneBit(Math.max(cells, 1)*2) * 2;
+            hashKeys = new long[capacity];
+            hashCells = new int[capacity];
+            Arrays.fill(hashKeys, -1);
+            for (c = 0; c < cells; c++) {
+                int slot = hash(cellKeys[c]);
+                while(hashKeys[slot] != -1)
+                    slot = (slot + 1) & (capacity - 1);
+                hashKeys[slot] = cellKeys[c];
+                hashCells[slot] = c;
+            }
+        }
+    }
+
+    private static int[] identity(int n) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    private int[] columnsOf(PointStore store) {
+        int[] keys = new int[store.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = column(store.get(i, 0));
+        }
+        return keys;
+    }
+
+    private int[] rowsOf(PointStore store, int yAxis) {
+        int[] keys = new int[store.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = row(store.get(i, yAxis));
+        }
+        return keys;
+    }
+
+    /**
+     * A stable counting sort of ids by key
+     * @param ids the ids to sort
+     * @param keys the key of each id, indexed by id
+     * @param range the keys are between 0 and range-1
+     * @return the sorted ids
+     */
+    private static int[] countingSort(int[] ids, int[] keys, int range) {
+        int[] start = new int[range+1];
+        for (int i : ids) {
+            start[keys[i]+1]++;
+        }
+        for (int k = 0; k < range; k++) {
+            start[k+1] += start[k];
+        }
+        int[] sorted = new int[ids.length];
+        for (int i : ids) {
+            sorted[start[keys[i]]++] = i;
+        }
+        return sorted;
+    }
+
+    private int column(int x) {
+        return (int) (((long) x - minX) / cellSize);
+    }
+
+    private int row(int y) {
+        return (int) (((long) y - minY) / cellSize);
+    }
+
+    private long cellNumber(int column, int row) {
+        return (long) row * columns + column;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (hashKeys.length - 1);
+    }
+
+    /**
+     * @return the index of the non empty cell, or -1 if the cell is empty
+     */
+    private int cellIndex(int column, int row) {
+        long key = cellNumber(column, row);
+        if(dense != null)
+            return dense[(int) key];
+        int slot = hash(key);
+        while(hashKeys[slot] != -1) {
+            if(hashKeys[slot] == key)
+                return hashCells[slot];
+            slot = (slot + 1) & (hashKeys.length - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList ids) {
+        int[] q = p.coordinates;
+        int reach = (int) (((long) epsilon + cellSize - 1) / cellSize);
+        int yAxis = Math.min(1, dimensions-1);
+        long cx = (((long) q[0] - minX) / cellSize), cy = (((long) q[yAxis] - minY) / cellSize);
+        int fromRow = (int) Math.max(0, cy - reach), toRow = (int) Math.min(rows-1, cy + reach);
+        int fromCol = (int) Math.max(0, cx - reach), toCol = (int) Math.min(columns-1, cx + reach);
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int col = fromCol; col <= toCol; col++) {
+                int c = cellIndex(col, row);
+                if(c < 0)
+                    continue;
+                DistanceKernel.within(coords, start[c], start[c+1], q, epsilon, this.ids, ids);
+            }
+        }
+    }
+
+    @Override
+    public int countWithin(Point p, int epsilon, int limit) {
+        int[] q = p.coordinates;
+        int reach = (int) (((long) epsilon + cellSize - 1) / cellSize);
+        int yAxis = Math.min(1, dimensions-1);
+        long cx = (((long) q[0] - minX) / cellSize), cy = (((long) q[yAxis] - minY) / cellSize);
+        int fromRow = (int) Math.max(0, cy - reach), toRow = (int) Math.min(rows-1, cy + reach);
+        int fromCol = (int) Math.max(0, cx - reach), toCol = (int) Math.min(columns-1, cx + reach);
+        int count = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int col = fromCol; col <= toCol; col++) {
+                int c = cellIndex(col, row);
+                if(c < 0)
+                    continue;
+                count += DistanceKernel.count(coords, start[c], start[c+1], q, epsilon, limit - count);
+                if(count >= limit)
+                    return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Searches rings of cells around p, moving outwards until every cell that could
+     * hold a nearer point has been seen
+     */
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        int[] q = p.coordinates;
+        int yAxis = Math.min(1, dimensions-1);
+        long cx = Math.max(0, Math.min(columns-1, ((long) q[0] - minX) / cellSize));
+        long cy = Math.max(0, Math.min(rows-1, ((long) q[yAxis] - minY) / cellSize));
+        int maxRing = Math.max(columns, rows);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (long row = cy - ring; row <= cy + ring; row++) {
+                if(row < 0 || row >= rows)
+                    continue;
+                // Only the first and last rows of the ring are full, the rest are just the ends
+                boolean edge = row == cy - ring || row == cy + ring;
+                for (long col = cx - ring; col <= cx + ring; col += edge ? 1 : Math.max(2*ring, 1)) {
+                    if(col < 0 || col >= columns)
+                        continue;
+                    int c = cellIndex((int) col, (int) row);
+                    if(c < 0)
+                        continue;
+                    for (int j = start[c]; j < start[c+1]; j++) {
+                        result.offer(ids[j], DistanceKernel.squareDistance(coords, j, q));
+                    }
+                }
+            }
+            // Every cell outside this ring is at least ring cells from the query point's cell
+            long reach = (long) ring * cellSize;
+            if(result.isFull() && result.worst() <= reach*reach)
+                break;
+        }
+        result.sort();
+    }
+
+    /**
+     * @return the side of each cell
+     */
+    public int cellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return the epsilon the grid was sized for
+     */
+    public int epsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return the number of cells that contain points
+     */
+    public int cellCount() {
+        return start.length-1;
+    }
+}
@@ -0,0 +1,196 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.InputMismatchException;
+
+/**
+ * Saves a built {@link QuadTree} or {@link KDTree} to a file so it can be loaded
+ * again without being rebuilt. The nodes are written in preorder as a flat array
+ * of ints, and loading maps the file and recreates each node in a single pass,
+ * with no sorting.
+ * The file is a header of the magic number, version, kind of index, number of
+ * dimensions, number of points, a fingerprint of the points' coordinates as two
+ * ints and the number of ints of nodes, followed by the nodes. Every value is a
+ * little-endian int. The points themselves are not saved, a snapshot is loaded
+ * alongside the points it was built from and the fingerprint makes sure they match.
+ * @author Jonathan
+ *
+ */
+public class IndexSnapshot {
+
+    /**
+     * The first int of a snapshot, "DBIX" when read as bytes
+     */
+    static final int MAGIC = 0x58494244;
+    static final int VERSION = 1;
+    private static final int HEADER_INTS = 8;
+    private static final int QUADTREE = 0;
+    private static final int KDTREE = 1;
+
+    /**
+     * Writes an index to a file
+     * @param index a QuadTree or KDTree built from the store
+     * @param store the points the index was built from
+     * @param file the file to write to, which is replaced
+     * @throws IOException if the file can't be written
+     * @throws IllegalArgumentException if the index isn't a QuadTree or KDTree
+     */
+    public static void save(SpatialIndex index, PointStore store, File file) throws IOException {
+        IntList nodes = new IntList(Math.max(store.size()*3, 16));
+        int type;
+        if(index instanceof QuadTree) {
+            type = QUADTREE;
+            ((QuadTree) index).writeTo(nodes);
+        } else if(index instanceof KDTree) {
+            type = KDTREE;
+            ((KDTree) index).writeTo(nodes);
+        } else {
+            throw new IllegalArgumentException("Only a QuadTree or KDTree can be saved, not "
+                    + index.getClass().getSimpleName());
+        }
+        long fingerprint = fingerprint(store);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            IntBuffer buffer = out.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, 4L*(HEADER_INTS + nodes.size()))
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            buffer.put(MAGIC).put(VERSION).put(type).put(store.dimensions()).put(store.size())
+                .put((int) (fingerprint >>> 32)).put((int) fingerprint).put(nodes.size());
+            buffer.put(nodes.data, 0, nodes.size());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads an index from a file
+     * @param file the snapshot
+     * @param store the points the index was built from
+     * @return the index, a QuadTree or KDTree
+     * @throws IOException if the file can't be read
+     * @throws InputMismatchException if the file isn't a snapshot, was built from different points,
+     * or its nodes are corrupt
+     */
+    public static SpatialIndex load(File file, PointStore store) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if(length < 4L*HEADER_INTS)
+                throw new InputMismatchException("Not an index snapshot");
+            IntBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            if(buffer.get() != MAGIC || buffer.get() != VERSION)
+                throw new InputMismatchException("Not a version "+VERSION+" index snapshot");
+            int type = buffer.get();
+            int dimensions = buffer.get();
+            int size = buffer.get();
+            long fingerprint = ((long) buffer.get() << 32) | (buffer.get() & 0xffffffffL);
+            int count = buffer.get();
+            if(length != 4L*(HEADER_INTS + count))
+                throw new InputMismatchException("The index snapshot is truncated");
+            if(dimensions != store.dimensions() || size != store.size() || fingerprint != fingerprint(store))
+                throw new InputMismatchException("The index snapshot was built from different points");
+            if(type == QUADTREE && dimensions != 2)
+                throw new InputMismatchException("A QuadTree snapshot can't index "+dimensions+" dimensional points");
+            SpatialIndex index;
+            switch (type) {
+            case QUADTREE:
+                QuadTree quadTree = new QuadTree();
+                quadTree.readFrom(buffer, store);
+                index = quadTree;
+                break;
+            case KDTREE:
+                KDTree kdTree = new KDTree();
+                kdTree.readFrom(buffer, store);
+                index = kdTree;
+                break;
+            default:
+                throw new InputMismatchException("Unknown kind of index "+type);
+            }
+            if(buffer.hasRemaining())
+                throw new InputMismatchException("The index snapshot has data after its last node");
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param index a loaded index
+     * @return the kind of the index
+     */
+    public static IndexType typeOf(SpatialIndex index) {
+        return index instanceof KDTree ? IndexType.KDTREE : IndexType.QUADTREE;
+    }
+
+    /**
+     * Reads the next int of a snapshot's nodes
+     * @throws InputMismatchException if the nodes end early
+     */
+    static int next(IntBuffer in) {
+        if(!in.hasRemaining())
+            throw new InputMismatchException("The index snapshot's nodes end early");
+        return in.get();
+    }
+
+    /**
+     * Reads the next int of a snapshot's nodes as the id of a point in the store
+     * @throws InputMismatchException if the nodes end early or the id isn't in the store
+     */
+    static Point point(IntBuffer in, PointStore store) {
+        int id = next(in);
+        if(id < 0 || id >= store.size())
+            throw new InputMismatchException("The index snapshot refers to point "+id
+                    + " of only "+store.size());
+        return store.toPoint(id);
+    }
+
+    /**
+     * @return a hash of every coordinate, in order
+     */
+    static long fingerprint(PointStore store) {
+        long hash = 1125899906842597L;
+        for (int d = 0; d < store.dimensions(); d++) {
+            int[] column = store.coords[d];
+            for (int i = 0; i < store.size(); i++) {
+                hash = 31*hash + column[i];
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Builds an index of a file of points, saves it, and times loading it against building it
+     * @param args the file of points, the snapshot to write, then quadtree or kdtree
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: IndexSnapshot file snapshot quadtree|kdtree");
+            System.exit(1);
+        }
+        PointStore store = PointLoader.load(new File(args[0]));
+        IndexType type = IndexType.valueOf(args[2].toUpperCase());
+        double start = System.nanoTime();
+        SpatialIndex index = type.create(0);
+        index.build(store);
+        System.out.format("Built %s of %d points in %fs%n", type, store.size(),
+                (System.nanoTime() - start) / 1000000000.0);
+        File file = new File(args[1]);
+        save(index, store, file);
+        for (int run = 0; run < 3; run++) {
+            start = System.nanoTime();
+            index = load(file, store);
+            System.out.format("Loaded %s in %fs%n", typeOf(index),
+                    (System.nanoTime() - start) / 1000000000.0);
+        }
+    }
+}
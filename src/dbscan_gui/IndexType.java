@@ -0,0 +1,83 @@
+package dbscan_gui;
+
+/**
+ * The kinds of {@link SpatialIndex} that can be chosen at runtime
+ * @author Jonathan
+ *
+ */
+public enum IndexType {
+    QUADTREE("QuadTree", false, true) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new QuadTree();
+        }
+    },
+    COMPACT_QUADTREE("Compact QuadTree", false, true) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new CompactQuadTree();
+        }
+    },
+    PR_QUADTREE("PR QuadTree", false, true) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new PRQuadTree();
+        }
+    },
+    KDTREE("KD Tree", false, false) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new KDTree();
+        }
+    },
+    GRID("Grid", true, false) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new GridIndex(epsilon);
+        }
+    },
+    BRUTE_FORCE("Brute Force", false, false) {
+        @Override
+        public SpatialIndex create(int epsilon) {
+            return new BruteForceIndex();
+        }
+    };
+
+    private final String name;
+    private final boolean tuned;
+    /**
+     * True if the index only compares the first two coordinates
+     */
+    private final boolean planar;
+
+    private IndexType(String name, boolean tuned, boolean planar) {
+        this.name = name;
+        this.tuned = tuned;
+        this.planar = planar;
+    }
+    /**
+     * Creates an empty index, call {@link SpatialIndex#build(PointStore)} to fill it
+     * @param epsilon the radius the index will be queried with, some indexes are tuned to it
+     * @return the index
+     */
+    public abstract SpatialIndex create(int epsilon);
+
+    /**
+     * @return true if the index has to be rebuilt when epsilon changes
+     */
+    public boolean tunedToEpsilon() {
+        return tuned;
+    }
+
+    /**
+     * @param dimensions the number of coordinates each point has
+     * @return true if the index can hold points with that many dimensions
+     */
+    public boolean supports(int dimensions) {
+        return planar ? dimensions == 2 : dimensions > 0;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,67 @@
+package dbscan_gui;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used as a reusable buffer for query
+ * results so that point ids don't have to be boxed.
+ * @author Jonathan
+ *
+ */
+public class IntList {
+    int[] data;
+    int size = 0;
+
+    public IntList() {
+        this(16);
+    }
+    /**
+     * @param capacity the initial capacity of the list
+     */
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+    /**
+     * Appends a value to the end of the list
+     * @param value
+     */
+    public void add(int value) {
+        if(size == data.length)
+            data = Arrays.copyOf(data, size*2);
+        data[size++] = value;
+    }
+    /**
+     * @param i the index of the value
+     * @return the value at index i
+     */
+    public int get(int i) {
+        return data[i];
+    }
+    /**
+     * @return the number of values in the list
+     */
+    public int size() {
+        return size;
+    }
+    /**
+     * @return true if the list has no values
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    /**
+     * Empties the list, keeping its storage for reuse
+     */
+    public void clear() {
+        size = 0;
+    }
+    /**
+     * @return a copy of the values in the list
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
@@ -1,19 +1,34 @@
 package dbscan_gui;
 
-
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Random;
-import java.util.TreeSet;
 
 
-public class KDTree {
+public class KDTree implements SpatialIndex {
     KDTreeNode root;
     PointComparator[] comps;
+    /**
+     * Creates an empty tree, use {@link #build(PointStore)} to fill it
+     */
+    public KDTree() {
+    }
     public KDTree(ArrayList<Point> list) {
+        build(list);
+    }
+    @Override
+    public void build(PointStore store) {
+        build(store.toPoints());
+    }
+    private void build(ArrayList<Point> list) {
+        root = null;
+        if(list.isEmpty())
+            return;
         int axes = list.get(0).coordinates.length;
         
         comps = new PointComparator[axes];
@@ -29,7 +44,7 @@ public class KDTree {
         }
         @Override
         public int compare(Point p1, Point p2) {
-            return p1.coordinates[axis] - p2.coordinates[axis];
+            return Integer.compare(p1.coordinates[axis], p2.coordinates[axis]);
         }
         
     }
@@ -40,6 +55,8 @@ public class KDTree {
      * @return an arraylist of all points in the tree
      */
     public ArrayList<Point> getNodes() {
+        if(root == null)
+            return new ArrayList<Point>();
         return root.allNodes();
     }
     /**
@@ -52,7 +69,8 @@ public class KDTree {
         KDTreeNode leftChild = null;
         KDTreeNode rightChild = null;
         Point location;
-        boolean visited = false;
+        // The bounding box of every point in this subtree
+        int[] min, max;
         
         /**
          * @param list the list to make the tree from
@@ -70,6 +88,48 @@ public class KDTree {
                 leftChild  = new KDTreeNode(new ArrayList<Point>(leftPoints), depth+1);
             if(!rightPoints.isEmpty())
                 rightChild = new KDTreeNode(new ArrayList<Point>(rightPoints),depth+1);
+            fitBounds();
+        }
+
+        /**
+         * Creates a node whose children are set afterwards, call {@link #fitBounds()} once they are
+         * @param location the point at this node
+         */
+        KDTreeNode(Point location) {
+            this.location = location;
+        }
+
+        /**
+         * Sets the bounding box to cover this node's point and its children's boxes
+         */
+        void fitBounds() {
+            min = location.coordinates.clone();
+            max = location.coordinates.clone();
+            for (KDTreeNode child : new KDTreeNode[]{leftChild, rightChild}) {
+                if(child == null)
+                    continue;
+                for (int d = 0; d < min.length; d++) {
+                    min[d] = Math.min(min[d], child.min[d]);
+                    max[d] = Math.max(max[d], child.max[d]);
+                }
+            }
+        }
+
+        /**
+         * @param q the coordinates of a point
+         * @return the squared distance from the point to the bounding box of this subtree
+         */
+        long boxDistance(int[] q) {
+            long sum = 0;
+            for (int d = 0; d < q.length; d++) {
+                long diff = 0;
+                if(q[d] < min[d])
+                    diff = (long) min[d] - q[d];
+                else if(q[d] > max[d])
+                    diff = (long) q[d] - max[d];
+                sum = DistanceKernel.add(sum, diff);
+            }
+            return sum;
         }
 
         public void add(Point p) {
@@ -98,184 +158,121 @@ public class KDTree {
     
     
     /**
-     * Finds the nearest n neighbours to the given point
-     * @param queryPoint the point you want the neighbours of
-     * @param count the amount of neighbours wanted
-     * @return
+     * Appends the tree to the list in preorder, for {@link IndexSnapshot}.
+     * Each node is a mask of which of its left and right children it has and
+     * then the id of its point, followed by its children.
+     * @param out the list to append to
      */
-    public ArrayList<Point> nearestNNeighbours(Point queryPoint, int count) {
-        KDNeighbours neighbours = new KDNeighbours(queryPoint,count);
-        nearestNeighbours_(root, queryPoint, 0, neighbours);
-        return neighbours.getNBest(count);
-    } 
+    void writeTo(IntList out) {
+        write(root, out);
+    }
+    private void write(KDTreeNode node, IntList out) {
+        if(node == null || node.location == null)
+            return;
+        out.add((node.leftChild != null ? 1 : 0) | (node.rightChild != null ? 2 : 0));
+        out.add(node.location.id);
+        write(node.leftChild, out);
+        write(node.rightChild, out);
+    }
     /**
-     * Finds the nearest neighbours of a point that fall within a given distance
-     * @param queryPoint the point to find the neighbours of
-     * @param epsilon the distance threshold
-     * @return the list of points
+     * Replaces the contents of the tree with one written by {@link #writeTo(IntList)}.
+     * The nodes are recreated exactly as they were written, so nothing is sorted or copied.
+     * @param in the preorder nodes
+     * @param store the points the ids refer to
      */
-    public ArrayList<Point> nearestNeighbours(Point queryPoint, int epsilon) {
-        KDNeighbours neighbours = new KDNeighbours(queryPoint, 1);
-        nearestNeighbours_(root, queryPoint, 0, neighbours);
-        return neighbours.getBest(epsilon);
+    void readFrom(IntBuffer in, PointStore store) {
+        root = in.hasRemaining() ? read(in, store) : null;
+    }
+    private KDTreeNode read(IntBuffer in, PointStore store) {
+        int mask = IndexSnapshot.next(in);
+        if((mask & ~3) != 0)
+            throw new InputMismatchException("The index snapshot has a corrupt node");
+        KDTreeNode node = new KDTreeNode(IndexSnapshot.point(in, store));
+        if((mask & 1) != 0) node.leftChild = read(in, store);
+        if((mask & 2) != 0) node.rightChild = read(in, store);
+        node.fitBounds();
+        return node;
     }
+
     /**
-     * @param node
-     * @param queryPoint
-     * @param depth
-     * @param bestNeighbours
+     * Finds the points within epsilon of the query point, not including the point itself
+     * @param queryPoint the centre of the neighbourhood
+     * @param epsilon the distance threshold
+     * @return the points
      */
-    private void nearestNeighbours_(KDTreeNode node, Point queryPoint, int depth, KDNeighbours bestNeighbours) {
-        if(node == null)
-            return;
-        if(node.isLeaf()) {
-            bestNeighbours.add(node.location);
-            return;
-        }
-        int axis = depth % (queryPoint.coordinates.length);
-        KDTreeNode nearSubtree = node.rightChild;
-        KDTreeNode farSubtree  = node.leftChild;
-        if(queryPoint.coordinates[axis] <= node.location.coordinates[axis]) {
-            nearSubtree = node.leftChild;
-            farSubtree = node.rightChild;
-        }
-        nearestNeighbours_(nearSubtree, queryPoint,  depth+1, bestNeighbours);
-        if(node.location != queryPoint) 
-            bestNeighbours.add(node.location);       
-     //   if(Math.pow(node.location.points[axis] - queryPoint.points[axis],2) <= bestNeighbours.largestDistance) 
-            nearestNeighbours_(farSubtree, queryPoint, depth+1,bestNeighbours);
-        
-        return;
-    }
     public ArrayList<Point> rangeSearch(Point queryPoint, int epsilon) {
         ArrayList<Point> neighbours = new ArrayList<Point>();
-        rangeSearch(root, queryPoint, epsilon, neighbours, 0);
+        range(root, queryPoint.coordinates, (long) epsilon*epsilon, null, neighbours, Integer.MAX_VALUE, 0);
+        neighbours.remove(queryPoint);
         return neighbours;
     }
-    private void rangeSearch(KDTreeNode node,Point queryPoint, int epsilon, ArrayList<Point> neighbours,int depth) {
-        if(queryPoint == null || node == null)
-            return;
-        node.visited = true;
-        if(node.location.distance(queryPoint) <= epsilon && queryPoint != node.location)  {
-            neighbours.add(node.location);
-        }
-        int axis =  depth % (queryPoint.coordinates.length);
-        // check dim
-        KDTreeNode nearSubtree = node.rightChild;
-        KDTreeNode farSubtree  = node.leftChild;
-        if(queryPoint.coordinates[axis] < node.location.coordinates[axis]) {
-            nearSubtree = node.leftChild;
-            farSubtree = node.rightChild;
-        }
-        rangeSearch(nearSubtree, queryPoint,  epsilon, neighbours,depth+1);
-               
-        if(Math.pow(node.location.coordinates[axis] - queryPoint.coordinates[axis],2) <= Math.sqrt(epsilon)) 
-            rangeSearch(farSubtree, queryPoint, epsilon,neighbours,depth+1);
-        
-      
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList ids) {
+        range(root, p.coordinates, (long) epsilon*epsilon, ids, null, Integer.MAX_VALUE, 0);
     }
-    private int countVisited(KDTreeNode node) {
-        if(node == null)
-            return 0;
-        if(node.visited)
-            return countVisited(node.leftChild) + countVisited(node.rightChild) + 1;
-        else
-            return countVisited(node.leftChild) + countVisited(node.rightChild);
+    /**
+     * Counts the points within epsilon of the query point, including the point itself
+     * if it is in the tree. The search stops as soon as limit points have been found.
+     * @param queryPoint the centre of the neighbourhood
+     * @param epsilon the distance threshold
+     * @param limit the count to stop at
+     * @return the number of points within epsilon, or at least limit if there are more
+     */
+    @Override
+    public int countWithin(Point queryPoint, int epsilon, int limit) {
+        return range(root, queryPoint.coordinates, (long) epsilon*epsilon, null, null, limit, 0);
     }
-
     /**
-     * Private data structure for holding the neighbours of a point
-     * @author Jonathan
-     *
+     * The range search shared by the queries. A subtree is skipped when its bounding box
+     * is further than epsilon from the query point. Nothing is written to the nodes, so
+     * any number of threads can search the tree at once.
+     * @param node the subtree to search
+     * @param q the coordinates of the query point
+     * @param r2 epsilon squared
+     * @param ids receives the ids of the points found, may be null
+     * @param points receives the points found, may be null
+     * @param limit the count to stop at
+     * @param count the number of points found so far
+     * @return the number of points found so far
      */
-    private class KDNeighbours {
-        Point queryPoint;
-        double largestDistance = 0;
-        int t;
-        TreeSet<Tuple> currentBest = new TreeSet<Tuple>(new Comparator<Tuple>() {
-            @Override
-            public int compare(Tuple o1, Tuple o2) {
-                return (int) (o1.y-o2.y);
-            }
-        });
-        /**
-         * @param queryPoint
-         * @param t
-         */
-        KDNeighbours(Point queryPoint, int t) {
-            this.queryPoint = queryPoint;
-            this.t = t;
-        }
-        /**
-         * @param t
-         * @return the t nearest neighbours to the query point
-         */
-        public ArrayList<Point> getNBest(int t) {
-            //System.out.println(currentBest);
-            ArrayList<Point> best = new ArrayList<Point>();
-            Iterator<Tuple> it = currentBest.iterator();
-            int count = 0;
-            while(it.hasNext()){
-                if(count==t)
-                    break;
-                best.add(it.next().x);
-                count++;
-            }
-            return best;
-        }
-        
-        /**
-         * @param epsilon
-         * @return
-         */
-        public ArrayList<Point> getBest(int epsilon) {
-           // System.out.println(currentBest);
-            ArrayList<Point> best = new ArrayList<Point>();
-            Iterator<Tuple> it = currentBest.iterator();
-            while(it.hasNext()) {
-                Tuple tu =it.next();
-                if(tu.y > epsilon)
-                    break;
-                else if(tu.x != queryPoint)
-                    best.add(tu.x);
-            }
-            return best;
-        }
-        
-        public void add(Point p) {
-            double dist = p.distance(queryPoint);
-            currentBest.add(new Tuple(p, dist));
-            calculateLargest();
-        }
-        private void calculateLargest() {
-            largestDistance = currentBest.last().y;
-           // System.out.println("Largest candidate distance for"+queryPoint+" ->"+currentBest.last());
-            /*
-            if(t >= currentBest.size())
-                largestDistance = currentBest.last().y;
-            else {
-                Iterator<Tuple> it = currentBest.iterator();
-                int c = 0;
-                while(it.hasNext()) {
-                    Tuple tu = it.next();
-                    if(c==t){
-                        largestDistance = tu.y;
-                        break;
-                    }
-                }
-            }*/
+    private int range(KDTreeNode node, int[] q, long r2, IntList ids, ArrayList<Point> points, int limit, int count) {
+        if(node == null || node.location == null || count >= limit || node.boxDistance(q) > r2)
+            return count;
+        if(DistanceKernel.squareDistance(node.location.coordinates, q) <= r2) {
+            count++;
+            if(ids != null)
+                ids.add(node.location.id);
+            if(points != null)
+                points.add(node.location);
         }
-        private class Tuple  {
-            Point x;
-            double y;
-            Tuple(Point x, double y) {
-                this.x = x;
-                this.y = y;
-            }
-            public String toString() {
-                return "["+x+","+y+"]";
-            }
+        count = range(node.leftChild, q, r2, ids, points, limit, count);
+        return range(node.rightChild, q, r2, ids, points, limit, count);
+    }
+    /**
+     * Finds the k nearest points. The subtree on the query point's side of each split
+     * is searched first, and a subtree is skipped when its bounding box is no nearer
+     * than the k'th nearest point found so far.
+     * Nothing is allocated, so reusing the result makes repeated queries garbage free.
+     */
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        nearest(root, p.coordinates, result, 0);
+        result.sort();
+    }
+    private void nearest(KDTreeNode node, int[] q, KNearest result, int depth) {
+        if(node == null || node.location == null || node.boxDistance(q) > result.worst())
+            return;
+        result.offer(node.location.id, DistanceKernel.squareDistance(node.location.coordinates, q));
+        int axis = depth % q.length;
+        KDTreeNode nearSubtree = node.rightChild;
+        KDTreeNode farSubtree  = node.leftChild;
+        if(q[axis] < node.location.coordinates[axis]) {
+            nearSubtree = node.leftChild;
+            farSubtree = node.rightChild;
         }
+        nearest(nearSubtree, q, result, depth+1);
+        nearest(farSubtree, q, result, depth+1);
     }
 
     /**
@@ -283,41 +280,54 @@ public class KDTree {
      */
     
     public static void main(String[] args) {
-        int epsilon = 3;
-        
-        System.out.println("Epsilon: "+epsilon);
         ArrayList<Point> points = new ArrayList<Point>();
         Random r = new Random();
-        for (int i = 0; i < 21; i++) {
-            points.add(new Point(r.nextInt(10),r.nextInt(10)));
+        for (int i = 0; i < 2000; i++) {
+            Point p = new Point(r.nextInt(1000),r.nextInt(1000));
+            p.id = i;
+            points.add(p);
         }
-        
-        System.out.println("Points "+points );
-        System.out.println("----------------");
-        System.out.println("Neighbouring Kd");
-        KDTree tree = new KDTree(points);
-        for (Point p : points) {
-            
-            ArrayList<Point> neighbours = tree.rangeSearch(p,epsilon);
-           // for (Point q : neighbours) { q.addNeighbour(p);}
-            p.addNeighbours(neighbours);
-            p.printNeighbours();
-            p.clearNeighbours();
-        }
-        System.out.println("------------------");
-        System.out.println("Neighbouring O(n^2)");
-    for (int i = 0; i < points.size(); i++) {
-        for (int j = i + 1; j < points.size(); j++) {
-            Point p = points.get(i), q = points.get(j);
-            if (p.distance(q) <= epsilon) {
-                p.addNeighbour(q);
-                q.addNeighbour(p);
+        KDTree tree = new KDTree(new ArrayList<Point>(points));
+        for (int epsilon : new int[]{0, 3, 25, 100}) {
+            int mismatches = 0;
+            for (Point p : points) {
+                // Compare the tree to an O(n^2) search
+                HashSet<Point> expected = new HashSet<Point>();
+                for (Point q : points) {
+                    if (p != q && p.squareDistance(q) <= (long) epsilon*epsilon)
+                        expected.add(q);
+                }
+                ArrayList<Point> neighbours = tree.rangeSearch(p, epsilon);
+                if(neighbours.size() != expected.size() || !expected.containsAll(neighbours)
+                        || tree.countWithin(p, epsilon, Integer.MAX_VALUE) != expected.size()+1) {
+                    mismatches++;
+                    System.out.println("Neighbours of "+p+" are: "+expected+" but the tree found: "+neighbours);
+                }
             }
+            System.out.format("Epsilon %d: %d of %d neighbourhoods differ from brute force%n",
+                    epsilon, mismatches, points.size());
         }
-    }
-        for (Point point : points) {
-            point.printNeighbours();
+        KNearest nearest = new KNearest();
+        KNearest expected = new KNearest();
+        for (int k : new int[]{1, 4, 20}) {
+            int mismatches = 0;
+            for (Point p : points) {
+                tree.nearest(p, k, nearest);
+                expected.reset(k);
+                for (Point q : points) {
+                    expected.offer(q.id, p.squareDistance(q));
+                }
+                expected.sort();
+                for (int i = 0; i < k; i++) {
+                    if(nearest.distance(i) != expected.distance(i)) {
+                        mismatches++;
+                        System.out.println("Nearest "+k+" to "+p+" are: "+expected+" but the tree found: "+nearest);
+                        break;
+                    }
+                }
+            }
+            System.out.format("k %d: %d of %d nearest neighbour searches differ from brute force%n",
+                    k, mismatches, points.size());
         }
-
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes the distance from every point to its k'th nearest neighbour. Plotted in
+ * descending order this is the k-distance graph used to choose epsilon for a given
+ * minPts: epsilon is the distance at the knee of the curve.
+ * @author Jonathan
+ *
+ */
+public class KDistance {
+
+    /**
+     * The number of points given to each task
+     */
+    private static final int GRAIN = 1024;
+
+    /**
+     * @param store the points
+     * @param index an index of the points in the store
+     * @param k the neighbour to measure to, counting the point itself as the first,
+     * so k is the same as minPts
+     * @param pool the pool to search on
+     * @return the squared k-distance of every point, indexed by id
+     */
+    public static long[] squareDistances(final PointStore store, final SpatialIndex index, final int k, ForkJoinPool pool) {
+        final long[] distances = new long[store.size()];
+        Parallel.forRange(pool, store.size(), GRAIN, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                // Each task reuses its own buffers for all of its points
+                KNearest nearest = new KNearest(k);
+                Point probe = new Point(new int[store.dimensions()]);
+                for (int i = from; i < to; i++) {
+                    index.nearest(store.copyTo(i, probe), k, nearest);
+                    distances[i] = nearest.size() == 0 ? 0 : nearest.distance(nearest.size()-1);
+                }
+            }
+        }, null);
+        return distances;
+    }
+
+    /**
+     * @param store the points
+     * @param index an index of the points in the store
+     * @param k the neighbour to measure to, the same as minPts
+     * @param pool the pool to search on
+     * @return the k-distance of every point, largest first
+     */
+    public static double[] plot(PointStore store, SpatialIndex index, int k, ForkJoinPool pool) {
+        long[] squares = squareDistances(store, index, k, pool);
+        Arrays.sort(squares);
+        double[] distances = new double[squares.length];
+        for (int i = 0; i < squares.length; i++) {
+            distances[i] = Math.sqrt(squares[squares.length-1-i]);
+        }
+        return distances;
+    }
+
+    /**
+     * Prints the k-distance graph of a file of points, one "rank distance" pair per line.
+     * Usage: KDistance file k [points]
+     * where points is the number of evenly spaced ranks to print, by default all of them.
+     * @param args
+     */
+    public static void main(String[] args) {
+        if(args.length < 2) {
+            System.err.println("Usage: KDistance file k [points]");
+            System.exit(1);
+        }
+        int k = Integer.parseInt(args[1]);
+        PointStore store = null;
+        try {
+            store = PointLoader.load(new File(args[0]));
+        } catch (IOException e) {
+            System.err.println("Could not load file "+args[0]+", "+e.getMessage());
+            System.exit(1);
+        }
+        int samples = args.length > 2 ? Integer.parseInt(args[2]) : store.size();
+        double start = System.nanoTime();
+        KDTree tree = new KDTree();
+        tree.build(store);
+        double[] distances = plot(store, tree, k, new ForkJoinPool());
+        System.err.format("Found %d-distances of %d points in %fs%n", k, store.size(),
+                (System.nanoTime() - start) / 1000000000.0);
+        int step = Math.max(1, distances.length / Math.max(samples, 1));
+        for (int i = 0; i < distances.length; i += step) {
+            System.out.format("%d %.1f%n", i, distances[i]);
+        }
+    }
+}
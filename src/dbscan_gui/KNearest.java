@@ -0,0 +1,133 @@
+package dbscan_gui;
+
+import java.util.Arrays;
+
+/**
+ * Holds the k nearest points found so far by a nearest neighbour search.
+ * The points are kept in a max heap on their squared distance, stored in primitive
+ * arrays, so the current k'th nearest distance is always at the top.
+ * A single instance can be reused for any number of searches.
+ * @author Jonathan
+ *
+ */
+public class KNearest {
+    int[] ids = new int[0];
+    long[] distances = new long[0];
+    private int k = 0;
+    private int size = 0;
+
+    public KNearest() {
+    }
+    /**
+     * @param k the number of neighbours to keep
+     */
+    public KNearest(int k) {
+        reset(k);
+    }
+    /**
+     * Empties the heap for a new search
+     * @param k the number of neighbours to keep
+     * @throws IllegalArgumentException if k is negative
+     */
+    public void reset(int k) {
+        if(k < 0)
+            throw new IllegalArgumentException("Can't keep "+k+" neighbours");
+        if(ids.length < k) {
+            ids = new int[k];
+            distances = new long[k];
+        }
+        this.k = k;
+        size = 0;
+    }
+    /**
+     * Adds a point if it is nearer than the current k'th nearest point
+     * @param id the id of the point
+     * @param distance the squared distance to the point
+     */
+    public void offer(int id, long distance) {
+        if(size < k) {
+            // Sift the new point up from the bottom of the heap
+            int i = size++;
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(distances[parent] >= distance)
+                    break;
+                ids[i] = ids[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+        } else if(k > 0 && distance < distances[0]) {
+            siftDown(0, id, distance, size);
+        }
+    }
+    /**
+     * Places a point at position i and moves it down until the heap is valid
+     */
+    private void siftDown(int i, int id, long distance, int end) {
+        while(true) {
+            int child = 2*i + 1;
+            if(child >= end)
+                break;
+            if(child + 1 < end && distances[child+1] > distances[child])
+                child++;
+            if(distances[child] <= distance)
+                break;
+            ids[i] = ids[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+    }
+    /**
+     * @return the squared distance a point must be under to be added,
+     * Long.MAX_VALUE until k points have been found, or if k is 0
+     */
+    public long worst() {
+        return size < k || k == 0 ? Long.MAX_VALUE : distances[0];
+    }
+    /**
+     * @return true if k points have been found
+     */
+    public boolean isFull() {
+        return size == k;
+    }
+    /**
+     * Orders the points from nearest to furthest. Call this once the search is
+     * finished, no more points can be offered afterwards.
+     */
+    public void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            int id = ids[end];
+            long distance = distances[end];
+            ids[end] = ids[0];
+            distances[end] = distances[0];
+            siftDown(0, id, distance, end);
+        }
+    }
+    /**
+     * @return the number of points found
+     */
+    public int size() {
+        return size;
+    }
+    /**
+     * @param i the position of the point, after {@link #sort()} 0 is the nearest
+     * @return the id of the point
+     */
+    public int id(int i) {
+        return ids[i];
+    }
+    /**
+     * @param i the position of the point, after {@link #sort()} 0 is the nearest
+     * @return the squared distance to the point
+     */
+    public long distance(int i) {
+        return distances[i];
+    }
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(ids, size));
+    }
+}
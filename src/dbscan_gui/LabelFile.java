@@ -0,0 +1,339 @@
+package dbscan_gui;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.InputMismatchException;
+
+/**
+ * Writes and reads the cluster of every point, in the same order as the points were loaded.
+ * Labels are written either as CSV, one line per point of its coordinates and then its
+ * cluster, or as binary, which is a header of the magic number, version, number of points
+ * and number of clusters followed by the label of each point. Every binary value is a
+ * little-endian int. Noise is written as {@link DBSCAN#NOISE} in both formats.
+ * Labels are streamed through a {@link LabelWriter}, which is opened, fed one point at a
+ * time and closed, so they never have to be collected into an array first. The binary
+ * header is filled in when the writer is closed. A DBSCAN label can still change until
+ * the clustering pass ends, as noise becomes border and clusters merge, so the engine's
+ * labels are appended once {@link DBSCAN#cluster(int, DBSCAN.Monitor)} returns.
+ * Numbers are formatted straight into a byte buffer, so the output is ASCII whatever the
+ * platform's charset is.
+ * @author Jonathan
+ *
+ */
+public class LabelFile {
+
+    /**
+     * The first int of a binary label file, "DBLB" when read as bytes
+     */
+    static final int MAGIC = 0x424c4244;
+    static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Writes the points and their clusters as CSV, with a header line
+     * @param points the points that were clustered
+     * @param labels the cluster of each point, as returned by {@link DBSCAN#getLabels()}
+     * @param file the file to write, which is replaced
+     * @throws IOException if the file can't be written
+     */
+    public static void writeCSV(PointStore points, int[] labels, File file) throws IOException {
+        LabelWriter out = openCSV(file, points.dimensions());
+        try {
+            for (int i = 0; i < points.size(); i++) {
+                out.add(points, i, labels[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the clusters as binary
+     * @param labels the cluster of each point, as returned by {@link DBSCAN#getLabels()}
+     * @param size the number of points
+     * @param file the file to write, which is replaced
+     * @throws IOException if the file can't be written
+     */
+    public static void writeBinary(int[] labels, int size, File file) throws IOException {
+        LabelWriter out = openBinary(file);
+        try {
+            for (int i = 0; i < size; i++) {
+                out.add(null, i, labels[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Starts a CSV label file, writing its header line
+     * @param file the file to write, which is replaced
+     * @param dimensions the number of coordinates each point has
+     * @return a writer to append each point and its cluster to
+     * @throws IOException if the file can't be written
+     */
+    public static LabelWriter openCSV(File file, int dimensions) throws IOException {
+        LabelWriter out = new LabelWriter(new FileOutputStream(file), false);
+        for (int d = 0; d < dimensions; d++) {
+            out.out.ascii("x" + d + ",");
+        }
+        out.out.ascii("cluster\n");
+        return out;
+    }
+
+    /**
+     * Starts a binary label file. The header's counts are written when the writer is closed.
+     * @param file the file to write, which is replaced
+     * @return a writer to append each point's cluster to
+     * @throws IOException if the file can't be written
+     */
+    public static LabelWriter openBinary(File file) throws IOException {
+        LabelWriter out = new LabelWriter(new FileOutputStream(file), true);
+        out.out.binary(MAGIC);
+        out.out.binary(VERSION);
+        out.out.binary(0);
+        out.out.binary(0);
+        return out;
+    }
+
+    /**
+     * Appends labels to a label file in the order the points are given
+     */
+    public static class LabelWriter implements Closeable {
+        private final FileOutputStream stream;
+        private final Writer out;
+        private final boolean binary;
+        private int size = 0;
+        private int clusters = 0;
+
+        private LabelWriter(FileOutputStream stream, boolean binary) {
+            this.stream = stream;
+            this.out = new Writer(stream);
+            this.binary = binary;
+        }
+
+        /**
+         * Appends a point and its cluster
+         * @param points the store holding the point, only read when writing CSV
+         * @param id the id of the point in the store
+         * @param label the cluster of the point, or {@link DBSCAN#NOISE}
+         * @throws IOException if the file can't be written
+         */
+        public void add(PointStore points, int id, int label) throws IOException {
+            if(binary) {
+                out.binary(label);
+            } else {
+                for (int d = 0; d < points.dimensions(); d++) {
+                    out.number(points.coords[d][id]);
+                    out.put(',');
+                }
+                out.number(label);
+                out.put('\n');
+            }
+            size++;
+            clusters = Math.max(clusters, label + 1);
+        }
+
+        /**
+         * @return the number of points written so far
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Writes out the buffered labels and the binary header's counts, and closes the file
+         * @throws IOException if the file can't be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                if(binary) {
+                    ByteBuffer counts = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                    counts.putInt(size).putInt(clusters);
+                    counts.flip();
+                    stream.getChannel().write(counts, 8);
+                }
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Reads labels written in either format, which is recognised by the file's first four bytes
+     * @param file the file to read
+     * @return the cluster of each point
+     * @throws IOException if the file can't be read
+     * @throws InputMismatchException if the file isn't a label file
+     */
+    public static int[] read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if(length > Integer.MAX_VALUE)
+                throw new InputMismatchException("The label file is too large");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(length >= 16 && buffer.getInt(0) == MAGIC)
+                return readBinary(buffer);
+            return readCSV(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] readBinary(ByteBuffer buffer) {
+        if(buffer.getInt(4) != VERSION)
+            throw new InputMismatchException("Not a version "+VERSION+" label file");
+        int size = buffer.getInt(8);
+        if(size < 0 || buffer.limit() != 16 + 4L*size)
+            throw new InputMismatchException("The label file is truncated");
+        buffer.position(16);
+        IntBuffer ints = buffer.asIntBuffer();
+        int[] labels = new int[size];
+        ints.get(labels);
+        return labels;
+    }
+
+    /**
+     * Reads the last column of every line after the header
+     */
+    private static int[] readCSV(ByteBuffer buffer) {
+        int end = buffer.limit();
+        int i = 0;
+        while(i < end && buffer.get(i) != '\n')
+            i++;
+        IntList labels = new IntList(end / 16 + 16);
+        while(++i < end) {
+            int lineStart = i;
+            while(i < end && buffer.get(i) != '\n')
+                i++;
+            int lineEnd = i;
+            if(lineEnd > lineStart && buffer.get(lineEnd-1) == '\r')
+                lineEnd--;
+            if(lineEnd == lineStart)
+                continue;
+            int j = lineEnd;
+            while(j > lineStart && buffer.get(j-1) != ',')
+                j--;
+            boolean negative = j < lineEnd && buffer.get(j) == '-';
+            if(negative)
+                j++;
+            if(j == lineEnd)
+                throw new InputMismatchException("Expected a cluster at byte "+lineStart);
+            int value = 0;
+            for (; j < lineEnd; j++) {
+                byte b = buffer.get(j);
+                if(b < '0' || b > '9')
+                    throw new InputMismatchException("Expected a cluster at byte "+j);
+                value = value*10 + (b - '0');
+            }
+            labels.add(negative ? -value : value);
+        }
+        return labels.toArray();
+    }
+
+    /**
+     * Buffers bytes and formats numbers without creating Strings
+     */
+    private static class Writer {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] digits = new byte[11];
+        private int size = 0;
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+        void put(char c) throws IOException {
+            if(size == buffer.length)
+                flush();
+            buffer[size++] = (byte) c;
+        }
+        void ascii(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+        /**
+         * Writes a number in decimal
+         */
+        void number(int value) throws IOException {
+            if(size + digits.length > buffer.length)
+                flush();
+            long v = value;
+            if(v < 0) {
+                buffer[size++] = '-';
+                v = -v;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while(v != 0);
+            while(n > 0)
+                buffer[size++] = digits[--n];
+        }
+        /**
+         * Writes a little-endian int
+         */
+        void binary(int value) throws IOException {
+            if(size + 4 > buffer.length)
+                flush();
+            buffer[size++] = (byte) value;
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 24);
+        }
+        void flush() throws IOException {
+            out.write(buffer, 0, size);
+            size = 0;
+        }
+    }
+
+    /**
+     * Clusters a file of points, writes the labels in both formats and reads them back
+     * @param args the file of points, epsilon, minPts and the name to write the labels to
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 4) {
+            System.err.println("Usage: LabelFile file epsilon minPts output");
+            System.exit(1);
+        }
+        PointStore points = PointLoader.load(new File(args[0]));
+        DBSCAN dbscan = new DBSCAN();
+        int[] labels = dbscan.run(points, Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        File csv = new File(args[3] + ".csv");
+        File binary = new File(args[3] + ".labels");
+        for (int run = 0; run < 3; run++) {
+            double start = System.nanoTime();
+            writeCSV(points, labels, csv);
+            double csvTime = System.nanoTime();
+            writeBinary(labels, points.size(), binary);
+            double binaryTime = System.nanoTime();
+            System.out.format("Wrote %d labels as CSV in %fs and binary in %fs%n", points.size(),
+                    (csvTime - start) / 1000000000.0, (binaryTime - csvTime) / 1000000000.0);
+        }
+        for (File file : new File[]{csv, binary}) {
+            int[] read = read(file);
+            boolean same = read.length == points.size();
+            for (int i = 0; same && i < read.length; i++) {
+                same = read[i] == labels[i];
+            }
+            System.out.format("%s %s%n", file, same ? "matches" : "differs");
+        }
+    }
+}
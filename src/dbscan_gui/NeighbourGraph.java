@@ -0,0 +1,369 @@
+package dbscan_gui;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The neighbourhoods of every point in a {@link PointStore}, stored in compressed
+ * sparse row form. The neighbours of point i are
+ * adjacency[offsets[i]] ... adjacency[offsets[i+1]-1]. A point is not its own neighbour.
+ * The arrays are kept between builds so a graph can be reused.
+ * The graph can be built on a fork/join pool, in which case the points are split into
+ * spatially coherent chunks that are queried independently and then merged.
+ * If distances are kept, each neighbourhood is sorted by squared distance and the
+ * distances are stored alongside the ids. The graph can then be truncated to any
+ * smaller epsilon by finding where each row ends, without querying the index again.
+ * The neighbours of point i are then adjacency[offsets[i]] ... adjacency[ends[i]-1].
+ * @author Jonathan
+ *
+ */
+public class NeighbourGraph {
+    int[] offsets = new int[1];
+    int[] adjacency = new int[0];
+    int[] ends = new int[0];
+    long[] distances = new long[0];
+    /**
+     * The number of neighbours of each point, filled in by a parallel build
+     */
+    private int[] degrees = new int[0];
+    private int size = 0;
+    private boolean keepDistances = false;
+    /**
+     * The radius the graph was built with, and the radius it is truncated to
+     */
+    private int builtEpsilon, epsilon;
+    private int edges = 0;
+    /**
+     * The number of points in each chunk of a parallel build
+     */
+    private static final int CHUNK = 512;
+
+    /**
+     * Finds the neighbours of every point in the store
+     * @param store the points
+     * @param index an index of every point in the store
+     * @param epsilon the neighbourhood radius
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the search
+     */
+    public boolean build(PointStore store, SpatialIndex index, int epsilon, DBSCAN.Monitor monitor) {
+        int n = store.size();
+        size = 0;
+        if(offsets.length < n+1)
+            offsets = new int[n+1];
+        offsets[0] = 0;
+        IntList result = new IntList();
+        Point probe = new Point(new int[store.dimensions()]);
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            if(monitor != null && (i & 0xff) == 0) {
+                if(monitor.isCancelled())
+                    return false;
+                monitor.progress(i, n);
+            }
+            result.clear();
+            index.queryCircle(epsilon, store.copyTo(i, probe), result);
+            if(length + result.size() > adjacency.length)
+                adjacency = Arrays.copyOf(adjacency, Math.max(adjacency.length*2, length+result.size()));
+            for (int k = 0; k < result.size(); k++) {
+                int j = result.get(k);
+                if(j != i)
+                    adjacency[length++] = j;
+            }
+            offsets[i+1] = length;
+        }
+        finish(store, epsilon, 0, n);
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+    /**
+     * Finds the neighbours of every point in the store using the threads of the pool.
+     * The index is only read, so it is shared by every thread. Progress is reported
+     * and cancellation checked on the calling thread.
+     * @param store the points
+     * @param index an index of every point in the store
+     * @param epsilon the neighbourhood radius
+     * @param pool the pool to run the queries on
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the search
+     */
+    public boolean build(final PointStore store, final SpatialIndex index, final int epsilon, ForkJoinPool pool, DBSCAN.Monitor monitor) {
+        int n = store.size();
+        size = 0;
+        if(offsets.length < n+1)
+            offsets = new int[n+1];
+        // Chunk c holds the points order[c*CHUNK] ... order[(c+1)*CHUNK-1]
+        final int[] order = store.gridOrder(CHUNK);
+        if(degrees.length < n)
+            degrees = new int[n];
+        final int[] degree = degrees;
+        final IntList[] chunks = new IntList[(n + CHUNK - 1) / CHUNK];
+        boolean completed = Parallel.forRange(pool, chunks.length, 1, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                IntList result = new IntList();
+                Point probe = new Point(new int[store.dimensions()]);
+                for (int c = from; c < to; c++) {
+                    IntList chunk = new IntList(CHUNK*8);
+                    int end = Math.min(order.length, (c+1)*CHUNK);
+                    for (int k = c*CHUNK; k < end; k++) {
+                        int i = order[k];
+                        result.clear();
+                        index.queryCircle(epsilon, store.copyTo(i, probe), result);
+                        int before = chunk.size();
+                        for (int r = 0; r < result.size(); r++) {
+                            if(result.get(r) != i)
+                                chunk.add(result.get(r));
+                        }
+                        degree[i] = chunk.size() - before;
+                    }
+                    chunks[c] = chunk;
+                }
+            }
+        }, monitor);
+        if(!completed)
+            return false;
+        // Every point's neighbour count is known, so the offsets can be laid out
+        // and each chunk copied into its own region without locking
+        offsets[0] = 0;
+        for (int i = 0; i < n; i++) {
+            offsets[i+1] = offsets[i] + degree[i];
+        }
+        if(adjacency.length < offsets[n])
+            adjacency = new int[offsets[n]];
+        completed = Parallel.forRange(pool, chunks.length, 1, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int c = from; c < to; c++) {
+                    int pos = 0;
+                    int end = Math.min(order.length, (c+1)*CHUNK);
+                    for (int k = c*CHUNK; k < end; k++) {
+                        int i = order[k];
+                        System.arraycopy(chunks[c].data, pos, adjacency, offsets[i], degree[i]);
+                        pos += degree[i];
+                    }
+                    chunks[c] = null;
+                }
+            }
+        }, null);
+        if(!completed)
+            return false;
+        prepareRows(n);
+        if(keepDistances) {
+            Parallel.forRange(pool, n, CHUNK, new Parallel.Body() {
+                @Override
+                public void run(int from, int to) {
+                    sortRows(store, from, to);
+                }
+            }, null);
+        }
+        finishRows(epsilon, n);
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+
+    /**
+     * Sets up the row ends, and sorts the rows when distances are kept
+     */
+    private void finish(PointStore store, int epsilon, int from, int to) {
+        prepareRows(to);
+        if(keepDistances)
+            sortRows(store, from, to);
+        finishRows(epsilon, to);
+    }
+    private void prepareRows(int n) {
+        if(ends.length < n)
+            ends = new int[n];
+        System.arraycopy(offsets, 1, ends, 0, n);
+        if(keepDistances && distances.length < offsets[n])
+            distances = new long[adjacency.length];
+    }
+    private void finishRows(int epsilon, int n) {
+        size = n;
+        builtEpsilon = epsilon;
+        this.epsilon = epsilon;
+        edges = offsets[n];
+    }
+    /**
+     * Fills in the distance of every neighbour of the points, and sorts their rows by it
+     */
+    private void sortRows(PointStore store, int from, int to) {
+        for (int i = from; i < to; i++) {
+            for (int k = offsets[i]; k < offsets[i+1]; k++) {
+                distances[k] = store.squareDistance(i, adjacency[k]);
+            }
+            sort(offsets[i], offsets[i+1]-1);
+        }
+    }
+    /**
+     * Sorts distances[low..high] into ascending order, moving adjacency along with it
+     */
+    private void sort(int low, int high) {
+        while(high - low > 16) {
+            // Median of three pivot, then partition
+            int mid = (low + high) >>> 1;
+            if(distances[mid] < distances[low]) swap(mid, low);
+            if(distances[high] < distances[low]) swap(high, low);
+            if(distances[high] < distances[mid]) swap(high, mid);
+            long pivot = distances[mid];
+            int i = low, j = high;
+            while(i <= j) {
+                while(distances[i] < pivot) i++;
+                while(distances[j] > pivot) j--;
+                if(i <= j)
+                    swap(i++, j--);
+            }
+            // Recurse into the smaller side so the stack stays shallow
+            if(j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long d = distances[i];
+            int id = adjacency[i];
+            int j = i - 1;
+            while(j >= low && distances[j] > d) {
+                distances[j+1] = distances[j];
+                adjacency[j+1] = adjacency[j];
+                j--;
+            }
+            distances[j+1] = d;
+            adjacency[j+1] = id;
+        }
+    }
+    private void swap(int a, int b) {
+        long d = distances[a];
+        distances[a] = distances[b];
+        distances[b] = d;
+        int id = adjacency[a];
+        adjacency[a] = adjacency[b];
+        adjacency[b] = id;
+    }
+
+    /**
+     * Keeping distances lets the graph be truncated to a smaller epsilon,
+     * at the cost of a long per neighbour and sorting every row when it is built
+     * @param keepDistances true to keep distances from the next build on
+     */
+    public void setKeepDistances(boolean keepDistances) {
+        this.keepDistances = keepDistances;
+        size = 0;
+    }
+
+    /**
+     * @return true if rows are sorted and distances kept
+     */
+    public boolean isKeepingDistances() {
+        return keepDistances;
+    }
+
+    /**
+     * @param epsilon a neighbourhood radius
+     * @return true if {@link #truncate(int)} can serve epsilon
+     */
+    public boolean covers(int epsilon) {
+        return keepDistances && size > 0 && epsilon <= builtEpsilon;
+    }
+
+    /**
+     * Restricts every neighbourhood to the neighbours within epsilon. Any epsilon up to
+     * the one the graph was built with can be chosen, in any order.
+     * @param epsilon the new neighbourhood radius
+     * @throws IllegalStateException if the graph doesn't cover epsilon
+     */
+    public void truncate(int epsilon) {
+        if(!covers(epsilon))
+            throw new IllegalStateException("The graph was built for epsilon "
+                    + builtEpsilon + " without distances, it can't serve " + epsilon);
+        long limit = (long) epsilon*epsilon;
+        edges = 0;
+        for (int i = 0; i < size; i++) {
+            // Find the first neighbour further than epsilon
+            int low = offsets[i], high = offsets[i+1];
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(distances[mid] <= limit)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            ends[i] = low;
+            edges += low - offsets[i];
+        }
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * @return the radius the neighbourhoods currently hold
+     */
+    public int epsilon() {
+        return epsilon;
+    }
+
+    /**
+     * @return the radius the graph was built with, the largest it can be truncated to
+     */
+    public int builtEpsilon() {
+        return builtEpsilon;
+    }
+    /**
+     * Removes every neighbourhood, keeping the storage for reuse
+     */
+    public void clear() {
+        size = 0;
+        edges = 0;
+    }
+    /**
+     * @return the number of points in the graph
+     */
+    public int size() {
+        return size;
+    }
+    /**
+     * @param id the id of a point
+     * @return the number of neighbours the point has
+     */
+    public int degree(int id) {
+        return ends[id] - offsets[id];
+    }
+    /**
+     * @param id the id of a point
+     * @return the index in the adjacency array of the point's first neighbour
+     */
+    public int start(int id) {
+        return offsets[id];
+    }
+    /**
+     * @param id the id of a point
+     * @return the index in the adjacency array after the point's last neighbour
+     */
+    public int end(int id) {
+        return ends[id];
+    }
+    /**
+     * @param k an index in the adjacency array
+     * @return the id of the neighbour at that index
+     */
+    public int neighbour(int k) {
+        return adjacency[k];
+    }
+    /**
+     * @param k an index in the adjacency array
+     * @return the squared distance to the neighbour at that index, if distances are kept
+     */
+    public long distance(int k) {
+        return distances[k];
+    }
+    /**
+     * @return the total number of neighbour entries in the graph
+     */
+    public int edges() {
+        return edges;
+    }
+}
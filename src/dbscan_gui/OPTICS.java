@@ -0,0 +1,381 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Orders points by density reachability, adapted from the OPTICS paper
+ * (Ankerst et al., 1999). A single run at a generating epsilon and minPts gives
+ * every point a core distance and a reachability distance, from which the DBSCAN
+ * clustering at any smaller epsilon can be extracted in linear time.
+ * Distances are kept squared, as longs, in flat arrays indexed by point id, and the
+ * seeds are kept in an indexed min heap so a point's reachability can be lowered in place.
+ * Neighbourhoods come from a {@link NeighbourGraph} that kept its distances, or
+ * otherwise from a {@link SpatialIndex}, so the store, index and graph of a {@link DBSCAN}
+ * can be shared.
+ * @author Jonathan
+ *
+ */
+public class OPTICS {
+
+    /**
+     * The distance of a point that isn't a core point, or hasn't been reached
+     */
+    public static final long UNDEFINED = Long.MAX_VALUE;
+
+    private PointStore store;
+    private SpatialIndex index;
+    private NeighbourGraph graph;
+    private int epsilon;
+    private int minPts;
+    private int[] order = new int[0];
+    private long[] reachability = new long[0];
+    private long[] coreDistance = new long[0];
+    /**
+     * The smallest max(core distance of q, distance to q) over every neighbour q of a point.
+     * A point that isn't core at some epsilon is a border point at it when this is within it.
+     */
+    private long[] borderDistance = new long[0];
+    private int[] borderOf = new int[0];
+    private boolean[] processed = new boolean[0];
+    private int size = 0;
+    private final SeedHeap seeds = new SeedHeap();
+    private final KNearest nearest = new KNearest();
+    private final IntList found = new IntList();
+    private final IntList queried = new IntList();
+    private long[] foundDistances = new long[16];
+    private Point probe;
+
+    /**
+     * Orders the points of a DBSCAN engine, reusing its neighbours if they were found with
+     * distances for at least epsilon, otherwise querying its index
+     * @param dbscan the engine whose points have been set
+     * @param epsilon the generating radius, the largest epsilon that can be extracted
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the ordering
+     */
+    public boolean run(DBSCAN dbscan, int epsilon, int minPts, DBSCAN.Monitor monitor) {
+        NeighbourGraph graph = dbscan.getGraph();
+        PointStore store = dbscan.getPoints();
+        if(graph.isKeepingDistances() && graph.size() == store.size() && graph.epsilon() >= epsilon)
+            return run(store, graph, epsilon, minPts, monitor);
+        return run(store, dbscan.indexFor(epsilon), epsilon, minPts, monitor);
+    }
+
+    /**
+     * Orders the points, querying the index for neighbourhoods
+     * @param store the points
+     * @param index an index of every point in the store
+     * @param epsilon the generating radius, the largest epsilon that can be extracted
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the ordering
+     */
+    public boolean run(PointStore store, SpatialIndex index, int epsilon, int minPts, DBSCAN.Monitor monitor) {
+        this.index = index;
+        this.graph = null;
+        return order(store, epsilon, minPts, monitor);
+    }
+
+    /**
+     * Orders the points, reading neighbourhoods from a graph that kept its distances
+     * @param store the points
+     * @param graph the neighbourhoods, found for at least epsilon
+     * @param epsilon the generating radius, the largest epsilon that can be extracted
+     * @param minPts the minimum number of points in a core point's neighbourhood
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the ordering
+     */
+    public boolean run(PointStore store, NeighbourGraph graph, int epsilon, int minPts, DBSCAN.Monitor monitor) {
+        if(!graph.isKeepingDistances() || graph.epsilon() < epsilon)
+            throw new IllegalArgumentException("The graph must keep distances for epsilon "+epsilon);
+        this.index = null;
+        this.graph = graph;
+        return order(store, epsilon, minPts, monitor);
+    }
+
+    private boolean order(PointStore store, int epsilon, int minPts, DBSCAN.Monitor monitor) {
+        this.store = store;
+        this.epsilon = epsilon;
+        this.minPts = minPts;
+        int n = store.size();
+        size = 0;
+        if(order.length < n) {
+            order = new int[n];
+            reachability = new long[n];
+            coreDistance = new long[n];
+            borderDistance = new long[n];
+            borderOf = new int[n];
+            processed = new boolean[n];
+        }
+        Arrays.fill(reachability, 0, n, UNDEFINED);
+        Arrays.fill(borderDistance, 0, n, UNDEFINED);
+        Arrays.fill(processed, 0, n, false);
+        seeds.reset(n);
+        probe = new Point(new int[store.dimensions()]);
+        for (int i = 0; i < n; i++) {
+            if(processed[i])
+                continue;
+            process(i);
+            while(!seeds.isEmpty()) {
+                if(monitor != null && (size & 0xff) == 0) {
+                    if(monitor.isCancelled())
+                        return false;
+                    monitor.progress(size, n);
+                }
+                process(seeds.poll());
+            }
+        }
+        if(monitor != null)
+            monitor.progress(n, n);
+        return true;
+    }
+
+    /**
+     * Appends a point to the order and, if it is a core point, lowers the reachability
+     * of its unprocessed neighbours
+     */
+    private void process(int p) {
+        processed[p] = true;
+        order[size++] = p;
+        neighbourhood(p);
+        // A neighbourhood always holds its own point, so with minPts below 1 every point is core
+        nearest.reset(Math.max(minPts, 1));
+        nearest.offer(p, 0);
+        for (int k = 0; k < found.size(); k++) {
+            nearest.offer(found.get(k), foundDistances[k]);
+        }
+        long core = nearest.isFull() ? nearest.worst() : UNDEFINED;
+        coreDistance[p] = core;
+        if(core == UNDEFINED)
+            return;
+        if(core < borderDistance[p]) {
+            borderDistance[p] = core;
+            borderOf[p] = p;
+        }
+        for (int k = 0; k < found.size(); k++) {
+            int o = found.get(k);
+            long reach = Math.max(core, foundDistances[k]);
+            if(reach < borderDistance[o]) {
+                borderDistance[o] = reach;
+                borderOf[o] = p;
+            }
+            if(processed[o] || reach >= reachability[o])
+                continue;
+            reachability[o] = reach;
+            seeds.update(o);
+        }
+    }
+
+    /**
+     * Fills found and foundDistances with the neighbours of p within epsilon, not including p
+     */
+    private void neighbourhood(int p) {
+        found.clear();
+        long limit = (long) epsilon*epsilon;
+        if(graph != null) {
+            for (int k = graph.start(p); k < graph.end(p) && graph.distance(k) <= limit; k++) {
+                add(graph.neighbour(k), graph.distance(k));
+            }
+        } else {
+            queried.clear();
+            index.queryCircle(epsilon, store.copyTo(p, probe), queried);
+            for (int k = 0; k < queried.size(); k++) {
+                int q = queried.get(k);
+                if(q != p)
+                    add(q, store.squareDistance(p, q));
+            }
+        }
+    }
+    private void add(int id, long distance) {
+        if(found.size() == foundDistances.length)
+            foundDistances = Arrays.copyOf(foundDistances, foundDistances.length*2);
+        foundDistances[found.size()] = distance;
+        found.add(id);
+    }
+
+    /**
+     * Extracts the DBSCAN clustering at an epsilon no larger than the generating one.
+     * Core points are clustered exactly as DBSCAN would, and every border point joins
+     * one of the clusters it borders. Clusters are numbered in the order they appear.
+     * @param epsilon the neighbourhood radius
+     * @param labels receives the cluster of each point, or {@link DBSCAN#NOISE}
+     * @return the number of clusters
+     * @throws IllegalArgumentException if epsilon is larger than the generating epsilon
+     */
+    public int extract(int epsilon, int[] labels) {
+        if(epsilon > this.epsilon)
+            throw new IllegalArgumentException("Can't extract epsilon "+epsilon
+                    + " from an ordering generated with epsilon "+this.epsilon);
+        long limit = (long) epsilon*epsilon;
+        int clusters = -1;
+        for (int k = 0; k < size; k++) {
+            int p = order[k];
+            if(reachability[p] > limit) {
+                if(coreDistance[p] <= limit)
+                    labels[p] = ++clusters;
+                else
+                    labels[p] = DBSCAN.NOISE;
+            } else {
+                labels[p] = clusters;
+            }
+        }
+        // A border point seen before any of its core points starts out as noise
+        for (int k = 0; k < size; k++) {
+            int p = order[k];
+            if(labels[p] == DBSCAN.NOISE && borderDistance[p] <= limit)
+                labels[p] = labels[borderOf[p]];
+        }
+        return clusters+1;
+    }
+
+    /**
+     * @return the point ids in the order they were processed, the array may be longer than the store
+     */
+    public int[] getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the number of points ordered
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param id a point
+     * @return the squared reachability distance of the point, or {@link #UNDEFINED}
+     */
+    public long reachability(int id) {
+        return reachability[id];
+    }
+
+    /**
+     * @param id a point
+     * @return the squared core distance of the point, or {@link #UNDEFINED}
+     */
+    public long coreDistance(int id) {
+        return coreDistance[id];
+    }
+
+    /**
+     * @return the generating epsilon
+     */
+    public int epsilon() {
+        return epsilon;
+    }
+
+    /**
+     * A binary min heap of point ids keyed on their reachability, which also tracks where
+     * each point is in the heap so a point's key can be lowered without searching for it.
+     * Ties are broken by id so the ordering is deterministic.
+     */
+    private class SeedHeap {
+        private int[] heap = new int[0];
+        private int[] position = new int[0];
+        private int size = 0;
+
+        void reset(int n) {
+            if(heap.length < n) {
+                heap = new int[n];
+                position = new int[n];
+            }
+            Arrays.fill(position, 0, n, -1);
+            size = 0;
+        }
+        boolean isEmpty() {
+            return size == 0;
+        }
+        /**
+         * Inserts a point, or moves it up after its reachability was lowered
+         */
+        void update(int id) {
+            int i = position[id];
+            if(i < 0)
+                i = size++;
+            siftUp(i, id);
+        }
+        int poll() {
+            int top = heap[0];
+            position[top] = -1;
+            int last = heap[--size];
+            if(size > 0)
+                siftDown(0, last);
+            return top;
+        }
+        private boolean less(int a, int b) {
+            return reachability[a] < reachability[b] || (reachability[a] == reachability[b] && a < b);
+        }
+        private void siftUp(int i, int id) {
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(!less(id, heap[parent]))
+                    break;
+                place(i, heap[parent]);
+                i = parent;
+            }
+            place(i, id);
+        }
+        private void siftDown(int i, int id) {
+            while(true) {
+                int child = 2*i + 1;
+                if(child >= size)
+                    break;
+                if(child + 1 < size && less(heap[child+1], heap[child]))
+                    child++;
+                if(!less(heap[child], id))
+                    break;
+                place(i, heap[child]);
+                i = child;
+            }
+            place(i, id);
+        }
+        private void place(int i, int id) {
+            heap[i] = id;
+            position[id] = i;
+        }
+    }
+
+    /**
+     * Orders a file of points once, then extracts clusterings at several epsilons and
+     * compares them to DBSCAN
+     * Usage: OPTICS file epsilon minPts
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: OPTICS file epsilon minPts");
+            System.exit(1);
+        }
+        PointStore points = PointLoader.load(new File(args[0]));
+        int epsilon = Integer.parseInt(args[1]);
+        int minPts = Integer.parseInt(args[2]);
+        DBSCAN dbscan = new DBSCAN();
+        dbscan.setPoints(points);
+        dbscan.setIndexType(IndexType.GRID);
+        OPTICS optics = new OPTICS();
+        double start = System.nanoTime();
+        optics.run(dbscan, epsilon, minPts, null);
+        System.out.format("Ordered %d points in %fs%n", points.size(),
+                (System.nanoTime() - start) / 1000000000.0);
+        int[] labels = new int[points.size()];
+        for (int e = epsilon; e > 0; e -= Math.max(1, epsilon / 5)) {
+            start = System.nanoTime();
+            int clusters = optics.extract(e, labels);
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            int noise = 0;
+            for (int label : labels) {
+                if(label == DBSCAN.NOISE)
+                    noise++;
+            }
+            dbscan.findNeighbours(e, null);
+            dbscan.cluster(minPts, null);
+            System.out.format("Epsilon %d: %d clusters and %d noise in %fs, DBSCAN finds %d clusters and %d noise%n",
+                    e, clusters, noise, seconds, dbscan.getClusterCount(), dbscan.getNoiseCount());
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package dbscan_gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Maintains a DBSCAN clustering of a set of 2D points while points are inserted and
+ * deleted, adapted from incremental DBSCAN (Ester et al., 1998). Only the neighbourhoods
+ * of the point being changed, and of points whose core status flips, are queried.
+ *
+ * Every live point keeps the size of its neighbourhood, including itself, so its core
+ * status is known without a query. Each core point holds a cluster token, and tokens are
+ * merged in a disjoint set forest, so merging clusters on insertion is cheap. When a
+ * deletion removes core points, the clusters they belonged to may split. A breadth first
+ * search over core points is started from each of their remaining core neighbours, and
+ * the searches are advanced in turn, one point each. Searches that meet are joined, and
+ * a search that runs out of points before meeting the others has found a separate
+ * cluster, which is given a new token. So the cost of a split is proportional to the
+ * smaller pieces rather than the whole cluster.
+ * Tokens that are no longer roots, or whose cluster has lost every core point, are
+ * reclaimed once the tokens in use outnumber the clusters by enough, by pointing every
+ * core point straight at its root. Roots keep their ids, so a cluster id is stable while
+ * the cluster exists, and the ids of clusters that are gone are reused.
+ *
+ * The cluster of a border point isn't stored. It is looked up from its core neighbours
+ * when asked for, so border points never have to be updated.
+ * A {@link ClusterListener} can be told whenever a cluster is created, merged, split or dissolved.
+ * Points are indexed in a {@link QuadTree}, which is rebuilt once deletions have left
+ * more empty nodes in it than there are points.
+ * @author Jonathan
+ *
+ */
+public class OnlineDBSCAN {
+
+    private final int epsilon;
+    private final int minPts;
+    private QuadTree tree = new QuadTree();
+    /**
+     * Live points by id, null for an id that is free
+     */
+    private Point[] points = new Point[16];
+    private int[] count = new int[16];
+    /**
+     * The cluster token of each core point, -1 for other points
+     */
+    private int[] token = new int[16];
+    private IntList freeIds = new IntList();
+    private int idLimit = 0;
+    private int size = 0;
+    private int clusterCount = 0;
+    private int[] tokenParent = new int[16];
+    private int tokens = 0;
+    private final IntList freeTokens = new IntList();
+    // Working state of the split searches
+    private int[] visitEpoch = new int[16];
+    private int[] visitSearch = new int[16];
+    private int epoch = 0;
+    private final IntList neighbours = new IntList();
+    private ClusterListener listener;
+
+    /**
+     * Receives changes to the clusters as they happen. Cluster ids are the same as those
+     * returned by {@link OnlineDBSCAN#cluster(int)}.
+     * @author Jonathan
+     *
+     */
+    public interface ClusterListener {
+        /**
+         * @param cluster a cluster of points that weren't in any cluster before
+         */
+        void clusterCreated(int cluster);
+        /**
+         * @param from a cluster that has been joined to another, it no longer exists
+         * @param into the cluster it joined, which keeps its id
+         */
+        void clustersMerged(int from, int into);
+        /**
+         * @param from a cluster that has lost some of its points, it keeps its id
+         * @param into a new cluster of the points it lost
+         */
+        void clusterSplit(int from, int into);
+        /**
+         * @param cluster a cluster that has lost all of its core points, it no longer exists
+         */
+        void clusterDissolved(int cluster);
+    }
+
+    /**
+     * @param epsilon the neighbourhood radius
+     * @param minPts the minimum number of points in a core point's neighbourhood, including itself
+     */
+    public OnlineDBSCAN(int epsilon, int minPts) {
+        this.epsilon = epsilon;
+        this.minPts = minPts;
+    }
+
+    /**
+     * @param listener receives changes to the clusters, may be null
+     */
+    public void setListener(ClusterListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the points with those of a store and clusters them from scratch.
+     * The id of each point is its id in the store. The listener isn't told about
+     * the clusters this creates.
+     * @param store 2D points
+     */
+    public void load(PointStore store) {
+        ClusterListener listener = this.listener;
+        this.listener = null;
+        try {
+            loadPoints(store);
+        } finally {
+            this.listener = listener;
+        }
+    }
+    private void loadPoints(PointStore store) {
+        int n = store.size();
+        points = new Point[Math.max(n, 16)];
+        count = new int[points.length];
+        token = new int[points.length];
+        Arrays.fill(token, -1);
+        freeIds.clear();
+        tokens = 0;
+        freeTokens.clear();
+        clusterCount = 0;
+        ArrayList<Point> list = store.toPoints();
+        for (int i = 0; i < n; i++) {
+            points[i] = list.get(i);
+        }
+        idLimit = n;
+        size = n;
+        visitEpoch = new int[points.length];
+        visitSearch = new int[points.length];
+        tree = new QuadTree(list);
+        // A grid is much quicker to query in bulk than the tree, which is kept for updates
+        GridIndex grid = new GridIndex(store, epsilon);
+        IntList around = new IntList();
+        for (int i = 0; i < n; i++) {
+            count[i] = grid.countWithin(points[i], epsilon, Integer.MAX_VALUE);
+        }
+        for (int i = 0; i < n; i++) {
+            if(!isCoreCount(i))
+                continue;
+            around.clear();
+            grid.queryCircle(epsilon, points[i], around);
+            makeCore(i, around.toArray());
+        }
+    }
+
+    /**
+     * Adds a point and updates the clusters
+     * @param coordinates the x and y of the point
+     * @return the id of the new point
+     * @throws IllegalArgumentException if the point isn't 2D
+     */
+    public int insert(int... coordinates) {
+        if(coordinates.length != 2)
+            throw new IllegalArgumentException("Expected an x and y, not "+coordinates.length+" coordinates");
+        int id = freeIds.isEmpty() ? idLimit++ : freeIds.get(--freeIds.size);
+        ensureCapacity(idLimit);
+        Point p = new Point(coordinates.clone());
+        p.id = id;
+        points[id] = p;
+        size++;
+        tree.add(p);
+        neighbours.clear();
+        tree.queryCircle(epsilon, p, neighbours);
+        count[id] = neighbours.size();
+        // Find the points that have just become core points, before changing any tokens
+        IntList promoted = new IntList();
+        if(isCoreCount(id))
+            promoted.add(id);
+        for (int k = 0; k < neighbours.size(); k++) {
+            int q = neighbours.get(k);
+            if(q != id && ++count[q] == minPts)
+                promoted.add(q);
+        }
+        for (int k = 0; k < promoted.size(); k++) {
+            token[promoted.get(k)] = -1;
+        }
+        for (int k = 0; k < promoted.size(); k++) {
+            makeCore(promoted.get(k), promoted.get(k) == id ? neighbours.toArray() : null);
+        }
+        compactTokens();
+        return id;
+    }
+
+    /**
+     * Removes a point and updates the clusters
+     * @param id the id of a live point
+     * @throws IllegalArgumentException if there is no live point with the id
+     */
+    public void delete(int id) {
+        if(id < 0 || id >= idLimit || points[id] == null)
+            throw new IllegalArgumentException("No point with id "+id);
+        Point p = points[id];
+        neighbours.clear();
+        tree.queryCircle(epsilon, p, neighbours);
+        int[] around = neighbours.toArray();
+        // The core points being lost, p if it was one and any neighbour that drops below minPts
+        IntList lost = new IntList();
+        if(isCoreCount(id))
+            lost.add(id);
+        for (int q : around) {
+            if(q != id && count[q]-- == minPts)
+                lost.add(q);
+        }
+        tree.remove(p);
+        points[id] = null;
+        count[id] = 0;
+        freeIds.add(id);
+        size--;
+        if(!lost.isEmpty())
+            split(lost, id, around);
+        for (int k = 0; k < lost.size(); k++) {
+            token[lost.get(k)] = -1;
+        }
+        if(tree.emptyNodes() > tree.size())
+            rebuild();
+        compactTokens();
+    }
+
+    /**
+     * Works out how the clusters of the lost core points break up. Seeds are the
+     * remaining core neighbours of lost points, grouped by the cluster they were in.
+     */
+    private void split(IntList lost, int deleted, int[] deletedNeighbours) {
+        Map<Integer, IntList> seeds = new HashMap<Integer, IntList>();
+        for (int k = 0; k < lost.size(); k++) {
+            int r = lost.get(k);
+            int cluster = find(token[r]);
+            IntList group = seeds.get(cluster);
+            if(group == null) {
+                group = new IntList();
+                seeds.put(cluster, group);
+            }
+            int[] around = r == deleted ? deletedNeighbours : query(r);
+            for (int q : around) {
+                if(q != deleted && isCore(q))
+                    group.add(q);
+            }
+        }
+        for (Map.Entry<Integer, IntList> entry : seeds.entrySet()) {
+            if(entry.getValue().isEmpty()) {
+                clusterCount--;
+                if(listener != null)
+                    listener.clusterDissolved(entry.getKey());
+            } else {
+                race(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Searches out from each seed, all in the same cluster before the deletion, and gives
+     * every piece except the last one still being searched a new token
+     * @param seeds the core points to search from
+     * @param cluster the cluster they were all in
+     */
+    private void race(IntList seeds, int cluster) {
+        epoch++;
+        int k = seeds.size();
+        IntList[] visited = new IntList[k];
+        int[] head = new int[k];
+        int[] group = new int[k];
+        int active = 0;
+        for (int s = 0; s < k; s++) {
+            int seed = seeds.get(s);
+            group[s] = s;
+            if(visitEpoch[seed] == epoch) {
+                // A duplicate seed joins the search that already has it
+                group[s] = searchGroup(group, visitSearch[seed]);
+                continue;
+            }
+            visitEpoch[seed] = epoch;
+            visitSearch[seed] = s;
+            visited[s] = new IntList();
+            visited[s].add(seed);
+            active++;
+        }
+        while(active > 1) {
+            boolean progressed = false;
+            for (int s = 0; s < k && active > 1; s++) {
+                if(visited[s] == null || head[s] == visited[s].size())
+                    continue;
+                progressed = true;
+                int u = visited[s].get(head[s]++);
+                for (int v : query(u)) {
+                    if(!isCore(v))
+                        continue;
+                    if(visitEpoch[v] != epoch) {
+                        visitEpoch[v] = epoch;
+                        visitSearch[v] = s;
+                        visited[s].add(v);
+                    } else {
+                        int a = searchGroup(group, s), b = searchGroup(group, visitSearch[v]);
+                        if(a != b) {
+                            group[Math.max(a, b)] = Math.min(a, b);
+                            active--;
+                        }
+                    }
+                }
+                if(exhausted(s, group, visited, head)) {
+                    // This piece is complete and separate from the others
+                    int t = newToken();
+                    int g = searchGroup(group, s);
+                    for (int o = 0; o < k; o++) {
+                        if(visited[o] == null || searchGroup(group, o) != g)
+                            continue;
+                        for (int i = 0; i < visited[o].size(); i++) {
+                            token[visited[o].get(i)] = t;
+                        }
+                        visited[o] = null;
+                    }
+                    clusterCount++;
+                    active--;
+                    if(listener != null)
+                        listener.clusterSplit(cluster, t);
+                }
+            }
+            if(!progressed)
+                break;
+        }
+    }
+
+    /**
+     * @return true if every search joined with s has run out of points
+     */
+    private boolean exhausted(int s, int[] group, IntList[] visited, int[] head) {
+        int g = searchGroup(group, s);
+        for (int o = 0; o < group.length; o++) {
+            if(visited[o] != null && searchGroup(group, o) == g && head[o] < visited[o].size())
+                return false;
+        }
+        return true;
+    }
+    private int searchGroup(int[] group, int s) {
+        while(group[s] != s)
+            s = group[s] = group[group[s]];
+        return s;
+    }
+
+    /**
+     * Gives a new core point a token, merging the clusters of its core neighbours
+     * @param id the point
+     * @param around its neighbourhood if it is already known, otherwise null
+     */
+    private void makeCore(int id, int[] around) {
+        if(around == null)
+            around = query(id);
+        int t = -1;
+        for (int q : around) {
+            if(q == id || !isCore(q) || token[q] < 0)
+                continue;
+            if(t < 0) {
+                t = find(token[q]);
+            } else {
+                int u = find(token[q]);
+                if(u != t) {
+                    tokenParent[u] = t;
+                    clusterCount--;
+                    if(listener != null)
+                        listener.clustersMerged(u, t);
+                }
+            }
+        }
+        if(t < 0) {
+            t = newToken();
+            clusterCount++;
+            if(listener != null)
+                listener.clusterCreated(t);
+        }
+        token[id] = t;
+    }
+
+    /**
+     * Drops every empty node from the index by rebuilding it from the live points
+     */
+    private void rebuild() {
+        ArrayList<Point> live = new ArrayList<Point>(size);
+        for (int i = 0; i < idLimit; i++) {
+            if(points[i] != null)
+                live.add(points[i]);
+        }
+        tree = new QuadTree(live);
+    }
+
+    private int[] query(int id) {
+        neighbours.clear();
+        tree.queryCircle(epsilon, points[id], neighbours);
+        return neighbours.toArray();
+    }
+    private boolean isCoreCount(int id) {
+        return count[id] >= minPts;
+    }
+    private int newToken() {
+        int t;
+        if(!freeTokens.isEmpty()) {
+            t = freeTokens.get(--freeTokens.size);
+        } else {
+            if(tokens == tokenParent.length)
+                tokenParent = Arrays.copyOf(tokenParent, tokens*2);
+            t = tokens++;
+        }
+        tokenParent[t] = t;
+        return t;
+    }
+    /**
+     * Frees every token that isn't the root of a live cluster, once the tokens
+     * in use are more than twice the clusters
+     */
+    private void compactTokens() {
+        if(tokens - freeTokens.size() <= 2*clusterCount + 64)
+            return;
+        boolean[] live = new boolean[tokens];
+        for (int i = 0; i < idLimit; i++) {
+            if(token[i] >= 0) {
+                token[i] = find(token[i]);
+                live[token[i]] = true;
+            }
+        }
+        while(tokens > 0 && !live[tokens-1])
+            tokens--;
+        freeTokens.clear();
+        for (int t = tokens-1; t >= 0; t--) {
+            if(!live[t])
+                freeTokens.add(t);
+        }
+    }
+    private int find(int t) {
+        while(tokenParent[t] != t)
+            t = tokenParent[t] = tokenParent[tokenParent[t]];
+        return t;
+    }
+    private void ensureCapacity(int n) {
+        if(n <= points.length)
+            return;
+        int capacity = Math.max(n, points.length*2);
+        points = Arrays.copyOf(points, capacity);
+        count = Arrays.copyOf(count, capacity);
+        token = Arrays.copyOf(token, capacity);
+        visitEpoch = Arrays.copyOf(visitEpoch, capacity);
+        visitSearch = Arrays.copyOf(visitSearch, capacity);
+    }
+
+    /**
+     * @param id the id of a live point
+     * @return true if the point is a core point
+     */
+    public boolean isCore(int id) {
+        return points[id] != null && isCoreCount(id);
+    }
+
+    /**
+     * Finds the cluster of a point. Cluster ids are stable while a cluster exists, but aren't dense.
+     * @param id the id of a live point
+     * @return the cluster of the point, or {@link DBSCAN#NOISE}
+     */
+    public int cluster(int id) {
+        if(isCore(id))
+            return find(token[id]);
+        for (int q : query(id)) {
+            if(isCore(q))
+                return find(token[q]);
+        }
+        return DBSCAN.NOISE;
+    }
+
+    /**
+     * @param id an id
+     * @return true if a live point has the id
+     */
+    public boolean contains(int id) {
+        return id >= 0 && id < idLimit && points[id] != null;
+    }
+
+    /**
+     * @return the number of live points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * Applies random insertions and deletions to a random live set, checks the clusters
+     * against DBSCAN and reports the update rate
+     * Usage: OnlineDBSCAN [points] [updates]
+     * @param args
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int side = (int) Math.sqrt(n) * 100;
+        int epsilon = 150, minPts = 5;
+        Random r = new Random(1);
+        PointStore store = new PointStore(2, n);
+        for (int i = 0; i < n; i++) {
+            store.add(r.nextInt(side), r.nextInt(side));
+        }
+        OnlineDBSCAN online = new OnlineDBSCAN(epsilon, minPts);
+        double start = System.nanoTime();
+        online.load(store);
+        System.out.format("Loaded %d points in %fs, %d clusters%n", n,
+                (System.nanoTime() - start) / 1000000000.0, online.getClusterCount());
+        IntList live = new IntList(n);
+        for (int i = 0; i < n; i++) {
+            live.add(i);
+        }
+        start = System.nanoTime();
+        for (int u = 0; u < updates; u++) {
+            if(r.nextBoolean()) {
+                live.add(online.insert(r.nextInt(side), r.nextInt(side)));
+            } else {
+                int k = r.nextInt(live.size());
+                online.delete(live.get(k));
+                live.data[k] = live.data[--live.size];
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        System.out.format("%d updates in %fs, %.0f updates/s, %d clusters%n",
+                updates, seconds, updates / seconds, online.getClusterCount());
+        // Recluster the live set from scratch and compare
+        PointStore check = new PointStore(2, live.size());
+        for (int k = 0; k < live.size(); k++) {
+            Point p = online.points[live.get(k)];
+            check.add(p.coordinates[0], p.coordinates[1]);
+        }
+        DBSCAN dbscan = new DBSCAN();
+        dbscan.setIndexType(IndexType.GRID);
+        dbscan.run(check, epsilon, minPts);
+        HashMap<Integer, Integer> mapping = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> inverse = new HashMap<Integer, Integer>();
+        int mismatches = 0;
+        for (int k = 0; k < live.size(); k++) {
+            int id = live.get(k);
+            if(!online.isCore(id)) {
+                if((online.cluster(id) == DBSCAN.NOISE) != (dbscan.label(k) == DBSCAN.NOISE))
+                    mismatches++;
+                continue;
+            }
+            // Core points must be partitioned the same way in both directions
+            Integer expected = mapping.get(online.cluster(id));
+            Integer reverse = inverse.get(dbscan.label(k));
+            if(expected == null)
+                mapping.put(online.cluster(id), dbscan.label(k));
+            if(reverse == null)
+                inverse.put(dbscan.label(k), online.cluster(id));
+            if((expected != null && expected != dbscan.label(k))
+                    || (reverse != null && reverse != online.cluster(id)))
+                mismatches++;
+        }
+        System.out.format("DBSCAN finds %d clusters, %d points differ%n",
+                dbscan.getClusterCount(), mismatches);
+    }
+}
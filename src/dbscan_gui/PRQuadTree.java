@@ -0,0 +1,348 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A region quadtree over the first two axes. Each node is a square cell whose side is a
+ * power of two, split at its midpoint into four quarters, and a cell holding no more than
+ * the bucket size of points is a leaf. Unlike {@link QuadTree} the shape of the tree
+ * depends only on where the points are, not on the order they arrive in, so its depth is
+ * bounded by the number of bits in the coordinates.
+ * The tree is bulk loaded by sorting the points by {@link SpaceFillingCurve#MORTON} index,
+ * which makes the points of every cell a contiguous range. Their coordinates are copied
+ * into that order, so a leaf is scanned straight through memory, and a cell that lies
+ * entirely inside the query circle is added without looking at its points.
+ * Nodes are stored in flat arrays and queried with a per thread explicit stack, so any
+ * number of threads can query at once.
+ * @author Jonathan
+ *
+ */
+public class PRQuadTree implements SpatialIndex {
+    /**
+     * The number of points a leaf holds before it is split
+     */
+    public static final int DEFAULT_BUCKET_SIZE = 32;
+    private final int bucketSize;
+    // The points in Morton order, with their coordinates in the same order
+    private int[] ids = new int[0];
+    private int[] xs = new int[0], ys = new int[0];
+    // The points of node h are ids[start[h]] ... ids[end[h]-1]
+    private IntList start = new IntList(), end = new IntList();
+    // The children of node h are child[4h] ... child[4h+3] in Morton order, or -1
+    private IntList child = new IntList();
+    // The bounding box of the points under node h is box[4h] ... box[4h+3] as minX, minY, maxX, maxY
+    private IntList box = new IntList();
+    private int depth = 0;
+    private long leafDepths = 0;
+    private int leaves = 0;
+    private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+    /**
+     * Creates an empty tree with the default bucket size,
+     * use {@link #build(PointStore)} to fill it
+     */
+    public PRQuadTree() {
+        this(DEFAULT_BUCKET_SIZE);
+    }
+
+    /**
+     * Creates an empty tree, use {@link #build(PointStore)} to fill it
+     * @param bucketSize the most points a leaf holds unless they are all at one location
+     */
+    public PRQuadTree(int bucketSize) {
+        this.bucketSize = Math.max(bucketSize, 1);
+    }
+
+    /**
+     * Sorts the points by Morton index and splits the sorted points into cells,
+     * taking O(n log n) time however the points are ordered
+     */
+    @Override
+    public void build(PointStore store) {
+        int n = store.size();
+        int yAxis = Math.min(1, store.dimensions()-1);
+        long[] keys = SpaceFillingCurve.MORTON.indexes(store);
+        ids = SpaceFillingCurve.sort(keys);
+        xs = new int[n];
+        ys = new int[n];
+        for (int k = 0; k < n; k++) {
+            xs[k] = store.coords[0][ids[k]];
+            ys[k] = store.coords[yAxis][ids[k]];
+        }
+        start.clear();
+        end.clear();
+        child.clear();
+        box.clear();
+        depth = 0;
+        leafDepths = 0;
+        leaves = 0;
+        if(n == 0)
+            return;
+        long span = Math.max((long) store.max(0) - store.min(0), (long) store.max(yAxis) - store.min(yAxis));
+        link(keys, 0, n, 64 - Long.numberOfLeadingZeros(span), 1);
+    }
+
+    /**
+     * Makes a node of the points from..to-1, which all lie in one cell
+     * @param keys the Morton index of each point, in order
+     * @param shift log2 of the side of the cell
+     * @param level the depth of the node, the root is at 1
+     * @return the node
+     */
+    private int link(long[] keys, int from, int to, int shift, int level) {
+        int h = start.size();
+        start.add(from);
+        end.add(to);
+        for (int q = 0; q < 4; q++) {
+            child.add(-1);
+            box.add(0);
+        }
+        depth = Math.max(depth, level);
+        if(to - from <= bucketSize || shift == 0) {
+            leaves++;
+            leafDepths += level;
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (int k = from; k < to; k++) {
+                minX = Math.min(minX, xs[k]);
+                minY = Math.min(minY, ys[k]);
+                maxX = Math.max(maxX, xs[k]);
+                maxY = Math.max(maxY, ys[k]);
+            }
+            setBox(h, minX, minY, maxX, maxY);
+            return h;
+        }
+        int bit = 2*(shift-1);
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        int first = from;
+        for (int q = 0; q < 4 && first < to; q++) {
+            // Binary search for the end of the points in quarter q
+            int low = first, high = to;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if((int) (keys[mid] >>> bit & 3) <= q)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            if(low > first) {
+                int c = link(keys, first, low, shift-1, level+1);
+                child.data[4*h + q] = c;
+                minX = Math.min(minX, box.data[4*c]);
+                minY = Math.min(minY, box.data[4*c+1]);
+                maxX = Math.max(maxX, box.data[4*c+2]);
+                maxY = Math.max(maxY, box.data[4*c+3]);
+            }
+            first = low;
+        }
+        setBox(h, minX, minY, maxX, maxY);
+        return h;
+    }
+
+    private void setBox(int h, int minX, int minY, int maxX, int maxY) {
+        box.data[4*h] = minX;
+        box.data[4*h+1] = minY;
+        box.data[4*h+2] = maxX;
+        box.data[4*h+3] = maxY;
+    }
+
+    /**
+     * @return this thread's stack, big enough for a walk of the whole tree
+     */
+    private int[] stack() {
+        int[] stack = stacks.get();
+        if(stack == null || stack.length < 3*depth + 2) {
+            stack = new int[3*depth + 2];
+            stacks.set(stack);
+        }
+        return stack;
+    }
+
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList result) {
+        search(p, epsilon, result, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int countWithin(Point p, int epsilon, int limit) {
+        return search(p, epsilon, null, limit);
+    }
+
+    /**
+     * Finds the points within epsilon of p. A node is skipped when its bounding box is
+     * further than epsilon away, and all of its points are taken when the corner of
+     * its box furthest from p is within epsilon.
+     * @param result receives the ids found, may be null
+     * @param limit the count to stop at
+     * @return the number of points found, or at least limit if there are more
+     */
+    private int search(Point p, int epsilon, IntList result, int limit) {
+        if(start.size() == 0)
+            return 0;
+        long px = p.coordinates[0], py = p.coordinates[1];
+        long r2 = (long) epsilon*epsilon;
+        int[] boxes = box.data, children = child.data, starts = start.data, ends = end.data;
+        int[] stack = stack();
+        int top = 0;
+        stack[top++] = 0;
+        int count = 0;
+        while(top > 0 && count < limit) {
+            int h = stack[--top];
+            long minX = boxes[4*h], minY = boxes[4*h+1], maxX = boxes[4*h+2], maxY = boxes[4*h+3];
+            long dx = px < minX ? minX - px : (px > maxX ? px - maxX : 0);
+            long dy = py < minY ? minY - py : (py > maxY ? py - maxY : 0);
+            if(!DistanceKernel.within(dx, dy, r2))
+                continue;
+            long fx = Math.max(px - minX, maxX - px), fy = Math.max(py - minY, maxY - py);
+            if(DistanceKernel.within(fx, fy, r2)) {
+                count += ends[h] - starts[h];
+                if(result != null) {
+                    for (int k = starts[h]; k < ends[h]; k++) {
+                        result.add(ids[k]);
+                    }
+                }
+            } else if(children[4*h] < 0 && children[4*h+1] < 0 && children[4*h+2] < 0 && children[4*h+3] < 0) {
+                if(result != null) {
+                    int before = result.size();
+                    DistanceKernel.within(xs, ys, starts[h], ends[h], px, py, epsilon, ids, result);
+                    count += result.size() - before;
+                } else {
+                    count += DistanceKernel.count(xs, ys, starts[h], ends[h], px, py, epsilon, limit - count);
+                }
+            } else {
+                for (int q = 3; q >= 0; q--) {
+                    if(children[4*h + q] >= 0)
+                        stack[top++] = children[4*h + q];
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds the k nearest points, searching the children of each node nearest box first,
+     * and skipping any node whose box is no nearer than the k'th nearest point so far.
+     */
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        if(start.size() > 0)
+            nearest(0, p.coordinates[0], p.coordinates[1], result);
+        result.sort();
+    }
+    private void nearest(int h, long px, long py, KNearest result) {
+        int[] boxes = box.data, children = child.data;
+        long distance = boxDistance(h, px, py);
+        if(distance > result.worst())
+            return;
+        if(children[4*h] < 0 && children[4*h+1] < 0 && children[4*h+2] < 0 && children[4*h+3] < 0) {
+            for (int j = start.data[h]; j < end.data[h]; j++) {
+                result.offer(ids[j], DistanceKernel.squareDistance(px - xs[j], py - ys[j]));
+            }
+            return;
+        }
+        // Insertion sort the children by distance
+        int[] order = new int[4];
+        long[] distances = new long[4];
+        int m = 0;
+        for (int q = 0; q < 4; q++) {
+            int c = children[4*h + q];
+            if(c < 0)
+                continue;
+            long d = boxDistance(c, px, py);
+            int j = m++;
+            for (; j > 0 && distances[j-1] > d; j--) {
+                order[j] = order[j-1];
+                distances[j] = distances[j-1];
+            }
+            order[j] = c;
+            distances[j] = d;
+        }
+        for (int j = 0; j < m; j++) {
+            nearest(order[j], px, py, result);
+        }
+    }
+
+    /**
+     * @return the squared distance from (px, py) to the bounding box of node h
+     */
+    private long boxDistance(int h, long px, long py) {
+        long minX = box.data[4*h], minY = box.data[4*h+1], maxX = box.data[4*h+2], maxY = box.data[4*h+3];
+        long dx = px < minX ? minX - px : (px > maxX ? px - maxX : 0);
+        long dy = py < minY ? minY - py : (py > maxY ? py - maxY : 0);
+        return DistanceKernel.squareDistance(dx, dy);
+    }
+
+    /**
+     * @return the number of points in the tree
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the most points a leaf holds unless they are all at one location
+     */
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    /**
+     * @return the number of nodes in the tree
+     */
+    public int nodeCount() {
+        return start.size();
+    }
+
+    /**
+     * @return the maximum depth of the tree
+     */
+    public int maxDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the average depth of the leaves
+     */
+    public double avgDepth() {
+        return leaves == 0 ? 0 : (double) leafDepths / leaves;
+    }
+
+    /**
+     * Compares the shape and query time of trees with different bucket sizes
+     * @param args a file of points, or none for the pathological diagonal, and epsilon
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        PointStore store;
+        if(args.length > 0 && !args[0].equals("pathological")) {
+            store = PointLoader.load(new File(args[0]));
+        } else {
+            store = new PointStore();
+            for (int j = 0; j < 3000; j++) {
+                store.add(j, j);
+            }
+        }
+        int epsilon = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        for (int bucketSize : new int[]{1, 4, 8, 16, 32, 64}) {
+            PRQuadTree tree = new PRQuadTree(bucketSize);
+            double begin = System.nanoTime();
+            tree.build(store);
+            double built = System.nanoTime();
+            IntList ids = new IntList();
+            Point probe = new Point(new int[store.dimensions()]);
+            long found = 0;
+            for (int i = 0; i < store.size(); i++) {
+                ids.clear();
+                tree.queryCircle(epsilon, store.copyTo(i, probe), ids);
+                found += ids.size();
+            }
+            double end = System.nanoTime();
+            System.out.format("bucket %d: %d nodes, max depth %d, average depth %.3f, built in %.4fs, "
+                    + "queried every point in %.4fs finding %d%n", bucketSize, tree.nodeCount(),
+                    tree.maxDepth(), tree.avgDepth(), (built - begin) / 1e9, (end - built) / 1e9, found);
+        }
+    }
+}
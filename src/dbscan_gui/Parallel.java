@@ -0,0 +1,104 @@
+package dbscan_gui;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a loop over a range of indices on a fork/join pool. The range is split in half
+ * until pieces are no bigger than the grain size, and each piece is passed to the body.
+ * Progress is reported and cancellation checked on the calling thread, so monitors
+ * don't have to be thread safe.
+ * @author Jonathan
+ *
+ */
+class Parallel {
+
+    /**
+     * The work done for a piece of the range. Pieces are run concurrently
+     * so they should only write to their own part of any shared state.
+     */
+    interface Body {
+        /**
+         * @param from the first index of the piece
+         * @param to the index after the last index of the piece
+         */
+        void run(int from, int to);
+    }
+
+    private final Body body;
+    private final int grain;
+    private final AtomicInteger done = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    private Parallel(Body body, int grain) {
+        this.body = body;
+        this.grain = Math.max(grain, 1);
+    }
+
+    /**
+     * Runs the body over the indices 0 to n-1 and waits for it to finish
+     * @param pool the pool to run on
+     * @param n the size of the range
+     * @param grain the largest piece of the range run as a single task
+     * @param body the work to do
+     * @param monitor receives progress, may be null
+     * @return false if the monitor cancelled the loop
+     */
+    static boolean forRange(ForkJoinPool pool, int n, int grain, Body body, DBSCAN.Monitor monitor) {
+        Parallel loop = new Parallel(body, grain);
+        Piece task = loop.new Piece(0, n);
+        pool.execute(task);
+        while(true) {
+            if(monitor != null) {
+                if(monitor.isCancelled()) {
+                    loop.cancelled = true;
+                    task.quietlyJoin();
+                    return false;
+                }
+                monitor.progress(loop.done.get(), n);
+            }
+            try {
+                task.get(100, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                // Still running, report progress again
+            } catch (InterruptedException e) {
+                loop.cancelled = true;
+                task.quietlyJoin();
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                // Rethrow what the body threw, so callers see the exceptions they document
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if(e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private class Piece extends RecursiveAction {
+        private static final long serialVersionUID = -4113716398213716512L;
+        private final int from, to;
+
+        Piece(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+        @Override
+        protected void compute() {
+            if(to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Piece(from, mid), new Piece(mid, to));
+            } else if(!cancelled && from < to) {
+                body.run(from, to);
+                done.addAndGet(to - from);
+            }
+        }
+    }
+}
@@ -2,8 +2,6 @@ package dbscan_gui;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
 
 /**
  * @author Jonathan
@@ -11,10 +9,8 @@ import java.util.HashSet;
  */
 public class Point {
     
-    private final HashSet<Point> neighbours = new HashSet<Point>();
     int[] coordinates;
-    boolean visited = false;
-    public boolean inCluster = false;
+    int id = -1;
     /**
      * @param ps
      */
@@ -39,49 +35,21 @@ public class Point {
 
     /**
      * @param p
-     * @return
+     * @return the squared distance to p, computed exactly in long arithmetic
      */
-    public double squareDistance(Point p) {
-        double sum = 0;
-        for (int i = 0;i < coordinates.length;i++) {
-            sum += Math.pow(coordinates[i] - p.coordinates[i],2);
-        }
-        return sum;
+    public long squareDistance(Point p) {
+        return DistanceKernel.squareDistance(coordinates, p.coordinates);
     }
 
     /**
+     * Compare {@link #squareDistance(Point)} to a squared radius instead where possible,
+     * it is exact and needs no square root
      * @param p
-     * @return
+     * @return the distance to p
      */
     public double distance(Point p) {
         return Math.sqrt(squareDistance(p));
     }
-    /**
-     * @param ps
-     */
-    public void addNeighbours(Collection<Point> ps) {
-        neighbours.addAll(ps);
-        neighbours.remove(this);
-    }
-    /**
-     * @param p
-     */
-    public void addNeighbour(Point p) {
-        if (p != this)
-            neighbours.add(p);
-    }
-    public void clearNeighbours() {
-        neighbours.clear();
-    }
-    public HashSet<Point> getNeighbours() {
-        return neighbours;
-    }
-    /**
-     * @return
-     */
-    public int neighbourCount() {
-        return neighbours.size();
-    }
     /**
      * @param args
      */
@@ -92,10 +60,4 @@ public class Point {
         System.out.print(p+"->"+p1+" ");
         System.out.println(p.distance(p1));
     }
-    /**
-     * 
-     */
-    public void printNeighbours() {
-        System.out.println("Neighbours of "+this+" are: "+neighbours);
-    }
 }
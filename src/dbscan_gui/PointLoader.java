@@ -0,0 +1,342 @@
+package dbscan_gui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.InputMismatchException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Loads files of line separated points, where each point is whitespace separated
+ * integers, into a {@link PointStore}. The number of dimensions is the number of
+ * integers on the first line.
+ * The file is memory mapped and parsed a byte at a time straight into primitive
+ * columns, which is far faster than {@link java.util.Scanner}. Large files can be
+ * split at line boundaries and parsed in parallel.
+ * Files can also be in a binary format, written by {@link #save(PointStore, File)}, which is
+ * recognised by its first four bytes. This is a header of the magic number, version,
+ * number of dimensions, number of points and the smallest then largest coordinate on each
+ * axis, followed by each axis's coordinates in turn. Every value is a little-endian int.
+ * @author Jonathan
+ *
+ */
+public class PointLoader {
+
+    /**
+     * Files smaller than this are always parsed on the calling thread
+     */
+    private static final long PARALLEL_THRESHOLD = 1 << 20;
+    /**
+     * The largest part of a file mapped at once
+     */
+    private static final long MAX_MAP = 1L << 30;
+    /**
+     * The first int of a binary file, "DBPT" when read as bytes
+     */
+    static final int MAGIC = 0x54504244;
+    static final int VERSION = 1;
+
+    /**
+     * Loads a file on the calling thread
+     * @param file the file to load
+     * @return the points in the order they appear in the file
+     * @throws IOException if the file can't be read
+     * @throws InputMismatchException if the file isn't line separated integers,
+     * or the lines don't all have the same number of integers
+     */
+    public static PointStore load(File file) throws IOException {
+        return load(file, null);
+    }
+
+    /**
+     * Loads a file, splitting it into pieces that are parsed on the pool
+     * @param file the file to load
+     * @param pool the pool to parse on, or null to parse on the calling thread
+     * @return the points in the order they appear in the file
+     * @throws IOException if the file can't be read
+     * @throws InputMismatchException if the file isn't line separated integers,
+     * or the lines don't all have the same number of integers
+     */
+    public static PointStore load(File file, ForkJoinPool pool) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if(isBinary(channel))
+                return loadBinary(channel);
+            int dimensions = -1;
+            IntList[] columns = null;
+            // Map the file a window at a time, each window ends on a line boundary
+            for (long position = 0; position < length; ) {
+                long size = Math.min(MAX_MAP, length - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                int end = (int) size;
+                if(position + size < length) {
+                    while(end > 0 && buffer.get(end-1) != '\n')
+                        end--;
+                    if(end == 0)
+                        throw new InputMismatchException("Line too long at byte "+position);
+                }
+                if(dimensions < 0) {
+                    dimensions = countDimensions(buffer, end);
+                    if(dimensions == 0)
+                        break;
+                    columns = new IntList[dimensions];
+                    for (int d = 0; d < dimensions; d++) {
+                        columns[d] = new IntList((int) Math.min(length / (8*dimensions) + 16, Integer.MAX_VALUE - 8));
+                    }
+                }
+                if(pool != null && end > PARALLEL_THRESHOLD)
+                    parseParallel(buffer, end, position, columns, pool);
+                else
+                    parse(buffer, 0, end, position, columns);
+                position += end;
+            }
+            if(columns == null)
+                return new PointStore();
+            int[][] coords = new int[dimensions][];
+            for (int d = 0; d < dimensions; d++) {
+                coords[d] = columns[d].data;
+            }
+            return new PointStore(coords, columns[0].size());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isBinary(FileChannel channel) throws IOException {
+        if(channel.size() < 4)
+            return false;
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(magic, 0);
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Maps a binary file and bulk copies each column out of it. PointStore needs
+     * its columns as arrays, so this is a copy rather than a view, but it is a
+     * straight memory copy with no parsing.
+     */
+    private static PointStore loadBinary(FileChannel channel) throws IOException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        int version = header.getInt(4);
+        int dimensions = header.getInt(8);
+        int size = header.getInt(12);
+        long headerBytes = 16 + 8L*dimensions;
+        if(version != VERSION || dimensions < 1 || size < 0
+                || length != headerBytes + 4L*dimensions*size)
+            throw new InputMismatchException("Not a valid version "+VERSION+" binary point file");
+        int[] min = new int[dimensions];
+        int[] max = new int[dimensions];
+        int[][] coords = new int[dimensions][Math.max(size, 1)];
+        IntBuffer bounds = channel.map(FileChannel.MapMode.READ_ONLY, 16, 8L*dimensions)
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        bounds.get(min);
+        bounds.get(max);
+        long columnBytes = 4L*size;
+        for (int d = 0; d < dimensions; d++) {
+            // A column can be bigger than one mapping allows, so map it a window at a time
+            for (long done = 0; done < columnBytes; ) {
+                long window = Math.min(MAX_MAP, columnBytes - done);
+                IntBuffer column = channel.map(FileChannel.MapMode.READ_ONLY,
+                        headerBytes + d*columnBytes + done, window)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                column.get(coords[d], (int) (done/4), (int) (window/4));
+                done += window;
+            }
+        }
+        return new PointStore(coords, size, min, max);
+    }
+
+    /**
+     * Writes points in the binary format, which loads much faster than text
+     * @param store the points to write
+     * @param file the file to write to, which is replaced
+     * @throws IOException if the file can't be written
+     */
+    public static void save(PointStore store, File file) throws IOException {
+        int dimensions = store.dimensions();
+        int size = store.size();
+        long headerBytes = 16 + 8L*dimensions;
+        long columnBytes = 4L*size;
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate((int) headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(size);
+            for (int d = 0; d < dimensions; d++) {
+                header.putInt(store.min(d));
+            }
+            for (int d = 0; d < dimensions; d++) {
+                header.putInt(store.max(d));
+            }
+            header.flip();
+            channel.write(header, 0);
+            for (int d = 0; d < dimensions; d++) {
+                for (long done = 0; done < columnBytes; ) {
+                    long window = Math.min(MAX_MAP, columnBytes - done);
+                    IntBuffer column = channel.map(FileChannel.MapMode.READ_WRITE,
+                            headerBytes + d*columnBytes + done, window)
+                            .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                    column.put(store.coords[d], (int) (done/4), (int) (window/4));
+                    done += window;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the number of integers on the first line that has any
+     */
+    private static int countDimensions(MappedByteBuffer buffer, int end) {
+        int count = 0;
+        boolean inNumber = false;
+        for (int i = 0; i < end; i++) {
+            byte b = buffer.get(i);
+            if(b == '\n') {
+                if(count > 0)
+                    return count;
+                inNumber = false;
+            } else if(isSpace(b)) {
+                inNumber = false;
+            } else if(!inNumber) {
+                inNumber = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    /**
+     * Splits the buffer into one piece per thread, ending each piece on a line boundary,
+     * and parses the pieces into their own columns before appending them in order.
+     */
+    private static void parseParallel(final MappedByteBuffer buffer, int end, final long position,
+            IntList[] columns, ForkJoinPool pool) {
+        int pieces = pool.getParallelism() * 4;
+        final int[] bounds = new int[pieces+1];
+        for (int p = 1; p < pieces; p++) {
+            int b = Math.max(bounds[p-1], (int) ((long) end * p / pieces));
+            while(b < end && buffer.get(b) != '\n')
+                b++;
+            bounds[p] = Math.min(end, b+1);
+        }
+        bounds[pieces] = end;
+        final int dimensions = columns.length;
+        final IntList[][] parts = new IntList[pieces][dimensions];
+        Parallel.forRange(pool, pieces, 1, new Parallel.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int p = from; p < to; p++) {
+                    for (int d = 0; d < dimensions; d++) {
+                        parts[p][d] = new IntList((bounds[p+1] - bounds[p]) / (8*dimensions) + 16);
+                    }
+                    // Each thread reads through its own view of the buffer
+                    parse((MappedByteBuffer) buffer.duplicate(), bounds[p], bounds[p+1], position, parts[p]);
+                }
+            }
+        }, null);
+        for (int p = 0; p < pieces; p++) {
+            for (int d = 0; d < dimensions; d++) {
+                IntList part = parts[p][d];
+                for (int i = 0; i < part.size(); i++) {
+                    columns[d].add(part.data[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the lines between from and to, which must start at the beginning of a line
+     * @param position the offset of the buffer in the file, for error messages
+     */
+    private static void parse(MappedByteBuffer buffer, int from, int to, long position, IntList[] columns) {
+        int dimensions = columns.length;
+        int i = from;
+        int d = 0;
+        while(i < to) {
+            byte b = buffer.get(i);
+            if(b == '\n') {
+                if(d != 0 && d != dimensions)
+                    throw mismatch(position + i);
+                d = 0;
+                i++;
+            } else if(isSpace(b)) {
+                i++;
+            } else {
+                boolean negative = b == '-';
+                if(b == '-' || b == '+')
+                    i++;
+                int start = i;
+                long value = 0;
+                while(i < to) {
+                    b = buffer.get(i);
+                    if(b < '0' || b > '9')
+                        break;
+                    value = value*10 + (b - '0');
+                    if(value > 1L + Integer.MAX_VALUE)
+                        throw mismatch(position + i);
+                    i++;
+                }
+                if(i == start || d == dimensions || (i < to && b != '\n' && !isSpace(b)))
+                    throw mismatch(position + i);
+                if(negative)
+                    value = -value;
+                if(value > Integer.MAX_VALUE)
+                    throw mismatch(position + i);
+                columns[d++].add((int) value);
+            }
+        }
+        if(d != 0 && d != dimensions)
+            throw mismatch(position + i);
+    }
+
+    private static InputMismatchException mismatch(long offset) {
+        return new InputMismatchException("Expected "
+                + "whitespace separated integers at byte "+offset);
+    }
+
+    /**
+     * Converts a file to the binary format if an output file is given, otherwise times loading it
+     * @param args the file to load, then optionally the binary file to write
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: PointLoader file [binary file]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        if(args.length > 1) {
+            PointStore store = load(file, new ForkJoinPool());
+            save(store, new File(args[1]));
+            System.out.format("Wrote %d points of %d dimensions to %s%n",
+                    store.size(), store.dimensions(), args[1]);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        for (int run = 0; run < 5; run++) {
+            double start = System.nanoTime();
+            PointStore store = load(file, run % 2 == 0 ? null : pool);
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            System.out.format("%s %d points of %d dimensions in %fs, %.1fMB/s%n",
+                    run % 2 == 0 ? "sequential" : "parallel", store.size(), store.dimensions(),
+                    seconds, file.length() / seconds / 1e6);
+        }
+    }
+}
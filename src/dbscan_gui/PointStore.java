@@ -0,0 +1,253 @@
+package dbscan_gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores a set of points as one primitive array per axis, so point i's
+ * coordinate on axis d is coords[d][i]. Points are referred to by their id,
+ * which is their index in the store.
+ * This avoids an object, and an array, per point.
+ * @author Jonathan
+ *
+ */
+public class PointStore {
+    int[][] coords;
+    private final int dimensions;
+    private int size = 0;
+    private final int[] min, max;
+
+    /**
+     * Creates an empty store of 2D points
+     */
+    public PointStore() {
+        this(2, 16);
+    }
+    /**
+     * @param dimensions the number of coordinates each point has
+     * @param capacity the number of points to allocate space for
+     */
+    public PointStore(int dimensions, int capacity) {
+        this.dimensions = dimensions;
+        coords = new int[dimensions][Math.max(capacity, 1)];
+        min = new int[dimensions];
+        max = new int[dimensions];
+        clear();
+    }
+    /**
+     * Creates a store that uses the given columns as its storage
+     * @param columns one array per axis, each at least size long
+     * @param size the number of points in the columns
+     */
+    public PointStore(int[][] columns, int size) {
+        this.dimensions = columns.length;
+        coords = columns;
+        min = new int[dimensions];
+        max = new int[dimensions];
+        clear();
+        this.size = size;
+        for (int d = 0; d < dimensions; d++) {
+            for (int i = 0; i < size; i++) {
+                if(columns[d][i] < min[d])
+                    min[d] = columns[d][i];
+                if(columns[d][i] > max[d])
+                    max[d] = columns[d][i];
+            }
+        }
+    }
+    /**
+     * Creates a store that uses the given columns as its storage, with bounds that are already known
+     * @param columns one array per axis, each at least size long
+     * @param size the number of points in the columns
+     * @param min the smallest coordinate on each axis
+     * @param max the largest coordinate on each axis
+     */
+    PointStore(int[][] columns, int size, int[] min, int[] max) {
+        this.dimensions = columns.length;
+        coords = columns;
+        this.size = size;
+        this.min = min;
+        this.max = max;
+    }
+    /**
+     * Copies a list of points into a new store. The id of each point is its
+     * index in the list.
+     * @param points the points to copy
+     * @return the store
+     */
+    public static PointStore fromPoints(List<Point> points) {
+        int dimensions = points.isEmpty() ? 2 : points.get(0).coordinates.length;
+        PointStore store = new PointStore(dimensions, points.size());
+        for (Point p : points) {
+            store.add(p.coordinates);
+        }
+        return store;
+    }
+    /**
+     * Appends a point to the store
+     * @param c the coordinates of the point
+     * @return the id of the point
+     */
+    public int add(int... c) {
+        if(size == coords[0].length) {
+            for (int d = 0; d < dimensions; d++) {
+                coords[d] = Arrays.copyOf(coords[d], size*2);
+            }
+        }
+        for (int d = 0; d < dimensions; d++) {
+            coords[d][size] = c[d];
+            if(c[d] < min[d])
+                min[d] = c[d];
+            if(c[d] > max[d])
+                max[d] = c[d];
+        }
+        return size++;
+    }
+    /**
+     * Removes all points, keeping the storage for reuse
+     */
+    public void clear() {
+        size = 0;
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+    }
+    /**
+     * @param id the id of the point
+     * @param axis the axis
+     * @return the coordinate of the point on the axis
+     */
+    public int get(int id, int axis) {
+        return coords[axis][id];
+    }
+    /**
+     * @param i the id of a point
+     * @param j the id of another point
+     * @return the squared euclidean distance between the points, or Long.MAX_VALUE if it doesn't fit in a long
+     */
+    public long squareDistance(int i, int j) {
+        long sum = 0;
+        for (int d = 0; d < dimensions; d++) {
+            sum = DistanceKernel.add(sum, (long) coords[d][i] - coords[d][j]);
+        }
+        return sum;
+    }
+    /**
+     * Copies the coordinates of a point into an existing point, so a single
+     * Point can be reused to query the point based trees.
+     * @param id the id of the point
+     * @param p the point to copy into, its id is set to id
+     * @return p
+     */
+    public Point copyTo(int id, Point p) {
+        for (int d = 0; d < dimensions; d++) {
+            p.coordinates[d] = coords[d][id];
+        }
+        p.id = id;
+        return p;
+    }
+    /**
+     * @param id the id of the point
+     * @return a new Point with the coordinates and id of the point
+     */
+    public Point toPoint(int id) {
+        return copyTo(id, new Point(new int[dimensions]));
+    }
+    /**
+     * @return a new Point for every point in the store
+     */
+    public ArrayList<Point> toPoints() {
+        ArrayList<Point> points = new ArrayList<Point>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(toPoint(i));
+        }
+        return points;
+    }
+    /**
+     * Orders the points so that points that are close together are close together
+     * in the ordering. The first two axes are divided into a square grid with
+     * about perCell points in each cell, and the cells are visited row by row,
+     * alternating direction on each row.
+     * @param perCell the average number of points per grid cell
+     * @return the ids of the points in grid order
+     */
+    public int[] gridOrder(int perCell) {
+        int side = Math.max(1, (int) Math.sqrt(size / Math.max(perCell, 1)));
+        int yAxis = Math.min(1, dimensions-1);
+        long width  = ((long) max(0) - min(0)) / side + 1;
+        long height = ((long) max(yAxis) - min(yAxis)) / side + 1;
+        int[] cellOf = new int[size];
+        int[] start = new int[side*side+1];
+        for (int i = 0; i < size; i++) {
+            int cx = (int) ((coords[0][i] - (long) min[0]) / width);
+            int cy = (int) ((coords[yAxis][i] - (long) min[yAxis]) / height);
+            if((cy & 1) == 1)
+                cx = side - 1 - cx;
+            cellOf[i] = cy*side + cx;
+            start[cellOf[i]+1]++;
+        }
+        for (int c = 0; c < side*side; c++) {
+            start[c+1] += start[c];
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[start[cellOf[i]]++] = i;
+        }
+        return order;
+    }
+    /**
+     * Copies the points into a new store in the given order, so point k of the new
+     * store is point order[k] of this one. The order maps the new ids back to these.
+     * @param order every id once, such as from {@link SpaceFillingCurve#order(PointStore)}
+     * @return the reordered store
+     */
+    public PointStore reorder(int[] order) {
+        int[][] columns = new int[dimensions][size];
+        for (int d = 0; d < dimensions; d++) {
+            int[] from = coords[d], to = columns[d];
+            for (int k = 0; k < size; k++) {
+                to[k] = from[order[k]];
+            }
+        }
+        return new PointStore(columns, size, min.clone(), max.clone());
+    }
+    /**
+     * @param id the id of the point
+     * @return the point formatted in the same way as {@link Point#toString()}
+     */
+    public String format(int id) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int d = 0; d < dimensions; d++) {
+            if(d > 0)
+                sb.append(", ");
+            sb.append(coords[d][id]);
+        }
+        return sb.append(']').toString();
+    }
+    /**
+     * @return the number of points in the store
+     */
+    public int size() {
+        return size;
+    }
+    /**
+     * @return the number of coordinates each point has
+     */
+    public int dimensions() {
+        return dimensions;
+    }
+    /**
+     * @param axis
+     * @return the smallest coordinate on the axis, or 0 if the store is empty
+     */
+    public int min(int axis) {
+        return size == 0 ? 0 : min[axis];
+    }
+    /**
+     * @param axis
+     * @return the largest coordinate on the axis, or 0 if the store is empty
+     */
+    public int max(int axis) {
+        return size == 0 ? 0 : max[axis];
+    }
+}
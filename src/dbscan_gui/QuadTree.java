@@ -1,17 +1,20 @@
 package dbscan_gui;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.InputMismatchException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Queue;
-import java.util.Scanner;
 
 /**
  * Adapted from http://algs4.cs.princeton.edu/92search/QuadTree.java.html
@@ -21,10 +24,11 @@ import java.util.Scanner;
  * @author Jonathan Mackenzie
  *
  */
-public class QuadTree implements Iterable<Point> {
+public class QuadTree implements Iterable<Point>, SpatialIndex {
 
     QuadTreeNode root;
     private int size = 0;
+    private int emptyNodes = 0;
     /**
      * Creates an empty QuadTree. Inserting elements is not guaranteed to result in a balanced
      * tree. Use the other constructor.
@@ -40,16 +44,36 @@ public class QuadTree implements Iterable<Point> {
      * @param points the arraylist of points to add
      */
     public QuadTree(ArrayList<Point> points) {
+        addBalanced(points);
+    }
+    /**
+     * Replaces the contents of the tree with the points of the store,
+     * inserted in the same balanced order as {@link #QuadTree(ArrayList)}
+     * @param store the points to add
+     */
+    @Override
+    public void build(PointStore store) {
+        root = null;
+        size = 0;
+        emptyNodes = 0;
+        addBalanced(store.toPoints());
+    }
+    /**
+     * Sorts the points and inserts them in an order that keeps the tree balanced
+     * @param points the points to add
+     */
+    private void addBalanced(ArrayList<Point> points) {
         if(points == null || points.isEmpty())
             return;
         Collections.sort(points,new Comparator<Point>() {
 
             @Override
             public int compare(Point p, Point q) {
+                // Subtracting could overflow when the coordinates are far apart
                 if(p.coordinates[0] == q.coordinates[0])
-                    return p.coordinates[1] - q.coordinates[1];
+                    return Integer.compare(p.coordinates[1], q.coordinates[1]);
                 else
-                    return p.coordinates[0] - q.coordinates[0];
+                    return Integer.compare(p.coordinates[0], q.coordinates[0]);
             }
         }); 
         // Create a balanced binary search tree
@@ -129,12 +153,52 @@ public class QuadTree implements Iterable<Point> {
      */
     private QuadTreeNode insert(QuadTreeNode h, Point p) {
         if(h== null) return new QuadTreeNode(p);
+        else if (h.value.isEmpty() && eq(p,h)) {
+            // Reuse a node left empty by remove()
+            h.value.add(p);
+            emptyNodes--;
+        }
         else if ( lessX(p,h) &&  lessY(p,h)) h.SW = insert(h.SW, p);
         else if ( lessX(p,h) && !lessY(p,h)) h.NW = insert(h.NW, p);
         else if (!lessX(p,h) &&  lessY(p,h)) h.SE = insert(h.SE, p);
         else if (!lessX(p,h) && !lessY(p,h)) h.NE = insert(h.NE, p);
         return h;
     }
+    /**
+     * Removes a point from the tree. The node that held it stays in place even if it is
+     * left empty, so the rest of the tree doesn't have to be rearranged. Queries skip
+     * empty nodes, and rebuilding the tree clears them out.
+     * @param p the point to remove, matched by its id
+     * @return true if the point was in the tree
+     */
+    public boolean remove(Point p) {
+        QuadTreeNode h = root;
+        while(h != null) {
+            if(eq(p,h)) {
+                for (int i = 0; i < h.value.size(); i++) {
+                    if(h.value.get(i).id == p.id) {
+                        h.value.remove(i);
+                        size--;
+                        if(h.value.isEmpty())
+                            emptyNodes++;
+                        return true;
+                    }
+                }
+            }
+            // Points at the same location as h are inserted into its NE quadrant
+            if      ( lessX(p,h) &&  lessY(p,h)) h = h.SW;
+            else if ( lessX(p,h) && !lessY(p,h)) h = h.NW;
+            else if (!lessX(p,h) &&  lessY(p,h)) h = h.SE;
+            else h = h.NE;
+        }
+        return false;
+    }
+    /**
+     * @return the number of nodes left empty by {@link #remove(Point)}
+     */
+    public int emptyNodes() {
+        return emptyNodes;
+    }
     /**
      * @param p
      * @param q
@@ -165,7 +229,7 @@ public class QuadTree implements Iterable<Point> {
     private boolean contains(QuadTreeNode h, Point p) {
         if(h==null) {
             return false;
-        } else if(eq(p,h)) {
+        } else if(eq(p,h) && !h.value.isEmpty()) {
             return true;
         } else {
             if      ( lessX(p,h) &&  lessY(p,h)) return contains(h.SW, p);
@@ -182,31 +246,215 @@ public class QuadTree implements Iterable<Point> {
      */
     public HashSet<Point> queryCircle(int epsilon, Point p) {
         HashSet<Point> neighbours = new HashSet<Point>();
-        query2D(root, p, epsilon,neighbours);
+        query2D(root, p, epsilon, (long) epsilon*epsilon, neighbours);
         return neighbours;
     }
+    /**
+     * Appends the ids of all points within epsilon of p to the list,
+     * including p itself if it is in the tree.
+     * @param epsilon
+     * @param p
+     * @param ids the list to add the ids to
+     */
+    @Override
+    public void queryCircle(int epsilon, Point p, IntList ids) {
+        query2D(root, p, epsilon, (long) epsilon*epsilon, ids);
+    }
+    /**
+     * Counts the points within epsilon of p, including p itself if it is in the tree.
+     * The search stops as soon as limit points have been found, so this is cheap
+     * when only a lower bound on the neighbourhood size is needed.
+     * @param p
+     * @param epsilon
+     * @param limit the count to stop at
+     * @return the number of points within epsilon, or at least limit if there are more
+     */
+    @Override
+    public int countWithin(Point p, int epsilon, int limit) {
+        return count2D(root, p, epsilon, (long) epsilon*epsilon, limit, 0);
+    }
     /**
      * @param h
      * @param p
      * @param r
+     * @param r2 r squared
+     * @param limit
+     * @param count the number of points found so far
+     * @return the number of points found so far
+     */
+    private int count2D(QuadTreeNode h, Point p, int r, long r2, int limit, int count) {
+        if(h==null || count >= limit) return count;
+        // The box around the circle is computed in long so it can't wrap past the int range
+        long px = p.coordinates[0];
+        long py = p.coordinates[1];
+        long xmin = px - r;
+        long xmax = px + r;
+        long ymin = py - r;
+        long ymax = py + r;
+        if(!h.value.isEmpty() && DistanceKernel.within(px - h.x, py - h.y, r2)) {
+            count += h.value.size();
+        }
+        if ( (xmin < h.x) &&  (ymin < h.y)) count = count2D(h.SW, p, r, r2, limit, count);
+        if ( (xmin < h.x) && !(ymax < h.y)) count = count2D(h.NW, p, r, r2, limit, count);
+        if (!(xmax < h.x) &&  (ymin < h.y)) count = count2D(h.SE, p, r, r2, limit, count);
+        if (!(xmax < h.x) && !(ymax < h.y)) count = count2D(h.NE, p, r, r2, limit, count);
+        return count;
+    }
+    /**
+     * @param h
+     * @param p
+     * @param r
+     * @param r2 r squared
      * @param neighbours
      */
-    private void query2D(QuadTreeNode h, Point p, int r, HashSet<Point> neighbours) {
+    private void query2D(QuadTreeNode h, Point p, int r, long r2, HashSet<Point> neighbours) {
         if(h==null) return;
-        int px = p.coordinates[0];
-        int py = p.coordinates[1];
-        int xmin = px - r;
-        int xmax = px + r;
-        int ymin = py - r;
-        int ymax = py + r;
-        if(p.distance(h.value.get(0)) <= r) {
+        long px = p.coordinates[0];
+        long py = p.coordinates[1];
+        long xmin = px - r;
+        long xmax = px + r;
+        long ymin = py - r;
+        long ymax = py + r;
+        if(!h.value.isEmpty() && DistanceKernel.within(px - h.x, py - h.y, r2)) {
             neighbours.addAll(h.value);
           //  p.addNeighbours(h.value);
         }
-        if ( (xmin < h.x) &&  (ymin < h.y)) query2D(h.SW, p, r, neighbours);
-        if ( (xmin < h.x) && !(ymax < h.y)) query2D(h.NW, p, r, neighbours);
-        if (!(xmax < h.x) &&  (ymin < h.y)) query2D(h.SE, p, r, neighbours);
-        if (!(xmax < h.x) && !(ymax < h.y)) query2D(h.NE, p, r, neighbours);
+        if ( (xmin < h.x) &&  (ymin < h.y)) query2D(h.SW, p, r, r2, neighbours);
+        if ( (xmin < h.x) && !(ymax < h.y)) query2D(h.NW, p, r, r2, neighbours);
+        if (!(xmax < h.x) &&  (ymin < h.y)) query2D(h.SE, p, r, r2, neighbours);
+        if (!(xmax < h.x) && !(ymax < h.y)) query2D(h.NE, p, r, r2, neighbours);
+    }
+    /**
+     * Same as {@link #query2D(QuadTreeNode, Point, int, long, HashSet)} but collects ids
+     * @param h
+     * @param p
+     * @param r
+     * @param r2 r squared
+     * @param ids
+     */
+    private void query2D(QuadTreeNode h, Point p, int r, long r2, IntList ids) {
+        if(h==null) return;
+        long px = p.coordinates[0];
+        long py = p.coordinates[1];
+        long xmin = px - r;
+        long xmax = px + r;
+        long ymin = py - r;
+        long ymax = py + r;
+        if(!h.value.isEmpty() && DistanceKernel.within(px - h.x, py - h.y, r2)) {
+            for (Point q : h.value) {
+                ids.add(q.id);
+            }
+        }
+        if ( (xmin < h.x) &&  (ymin < h.y)) query2D(h.SW, p, r, r2, ids);
+        if ( (xmin < h.x) && !(ymax < h.y)) query2D(h.NW, p, r, r2, ids);
+        if (!(xmax < h.x) &&  (ymin < h.y)) query2D(h.SE, p, r, r2, ids);
+        if (!(xmax < h.x) && !(ymax < h.y)) query2D(h.NE, p, r, r2, ids);
+    }
+  
+    /**
+     * Finds the k nearest points by searching the quadrant containing p first, and
+     * skipping any quadrant whose region is further away than the k'th nearest point so far.
+     */
+    @Override
+    public void nearest(Point p, int k, KNearest result) {
+        result.reset(k);
+        nearest2D(root, p, result, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE);
+        result.sort();
+    }
+    /**
+     * @param h
+     * @param p
+     * @param result
+     * @param xmin the region covered by h
+     * @param xmax
+     * @param ymin
+     * @param ymax
+     */
+    private void nearest2D(QuadTreeNode h, Point p, KNearest result, long xmin, long xmax, long ymin, long ymax) {
+        if(h == null)
+            return;
+        long px = p.coordinates[0];
+        long py = p.coordinates[1];
+        long dx = px < xmin ? xmin - px : (px > xmax ? px - xmax : 0);
+        long dy = py < ymin ? ymin - py : (py > ymax ? py - ymax : 0);
+        if(DistanceKernel.squareDistance(dx, dy) > result.worst())
+            return;
+        long distance = DistanceKernel.squareDistance(px - h.x, py - h.y);
+        for (Point q : h.value) {
+            result.offer(q.id, distance);
+        }
+        // Visit the quadrant containing p first, then the others
+        boolean west = px < h.x, south = py < h.y;
+        for (int i = 0; i < 4; i++) {
+            boolean w = (i & 1) == 0 ? west : !west;
+            boolean s = (i & 2) == 0 ? south : !south;
+            QuadTreeNode child = w ? (s ? h.SW : h.NW) : (s ? h.SE : h.NE);
+            nearest2D(child, p, result,
+                    w ? xmin : h.x, w ? h.x - 1L : xmax,
+                    s ? ymin : h.y, s ? h.y - 1L : ymax);
+        }
+    }
+  
+    /**
+     * Appends the tree to the list in preorder, for {@link IndexSnapshot}.
+     * Each node is a mask of which of NW, NE, SW and SE it has, the number of
+     * points it holds and then their ids, followed by its children in that order.
+     * A node left empty by {@link #remove(Point)} has no ids, so its x and y follow the count instead.
+     * @param out the list to append to
+     */
+    void writeTo(IntList out) {
+        write(root, out);
+    }
+    private void write(QuadTreeNode h, IntList out) {
+        if(h == null)
+            return;
+        out.add((h.NW != null ? 1 : 0) | (h.NE != null ? 2 : 0)
+                | (h.SW != null ? 4 : 0) | (h.SE != null ? 8 : 0));
+        out.add(h.value.size());
+        if(h.value.isEmpty()) {
+            out.add(h.x);
+            out.add(h.y);
+        }
+        for (Point p : h.value) {
+            out.add(p.id);
+        }
+        write(h.NW, out);
+        write(h.NE, out);
+        write(h.SW, out);
+        write(h.SE, out);
+    }
+    /**
+     * Replaces the contents of the tree with one written by {@link #writeTo(IntList)}.
+     * The nodes are recreated exactly as they were written, so nothing is sorted or compared.
+     * @param in the preorder nodes
+     * @param store the points the ids refer to
+     */
+    void readFrom(IntBuffer in, PointStore store) {
+        size = 0;
+        emptyNodes = 0;
+        root = in.hasRemaining() ? read(in, store) : null;
+    }
+    private QuadTreeNode read(IntBuffer in, PointStore store) {
+        int mask = IndexSnapshot.next(in);
+        int count = IndexSnapshot.next(in);
+        if((mask & ~15) != 0 || count < 0 || count > in.remaining())
+            throw new InputMismatchException("The index snapshot has a corrupt node");
+        QuadTreeNode h;
+        if(count == 0) {
+            h = new QuadTreeNode(IndexSnapshot.next(in), IndexSnapshot.next(in));
+            emptyNodes++;
+        } else {
+            h = new QuadTreeNode(IndexSnapshot.point(in, store));
+        }
+        for (int i = 1; i < count; i++) {
+            h.value.add(IndexSnapshot.point(in, store));
+        }
+        size += count;
+        if((mask & 1) != 0) h.NW = read(in, store);
+        if((mask & 2) != 0) h.NE = read(in, store);
+        if((mask & 4) != 0) h.SW = read(in, store);
+        if((mask & 8) != 0) h.SE = read(in, store);
+        return h;
     }
   
     /**
@@ -224,6 +472,10 @@ public class QuadTree implements Iterable<Point> {
             x = p.coordinates[0];
             y = p.coordinates[1];
         }
+        public QuadTreeNode(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
         public boolean isLeaf() {
             return NW == null && NE == null && SW == null && SE == null;
         }
@@ -244,16 +496,18 @@ public class QuadTree implements Iterable<Point> {
             stats.put("arbitrary", 0.0);
             stats.put("sorted", 0.0);
             stats.put("zorder", 0.0);
+            stats.put("pr", 0.0);
+            stats.put("sorted+hilbert", 0.0);
             
             for (int i = 0; i < runs; i++) {
                     ArrayList<Point> points = new ArrayList<Point>();
                     
                     try {
-                        Scanner in = new Scanner(new File("data/"+string));
-                        while(in.hasNext()) {
-                            points.add(new Point(in.nextInt(),in.nextInt()));
+                        PointStore store = PointLoader.load(new File("data/"+string));
+                        for (int j = 0; j < store.size(); j++) {
+                            points.add(store.toPoint(j));
                         }
-                    } catch (FileNotFoundException e) {
+                    } catch (IOException e) {
                      // Generate a pathological dataset (1,1),(2,2),(3,3)
                         for(int j=0;j<3000;j++) {
                             points.add(new Point(j,j));
@@ -277,28 +531,30 @@ public class QuadTree implements Iterable<Point> {
                         System.out.format("sorted avgdepth :%.3f%n", tree.avgDepth());
                     }
                     stats.put("sorted",new Double(stats.get("sorted")+(timeNeighbouring(tree, epsilon))));
+                    // Query the balanced tree along a Hilbert curve, so consecutive queries visit the same nodes
+                    PointStore hilbert = PointStore.fromPoints(points);
+                    hilbert = hilbert.reorder(SpaceFillingCurve.HILBERT.order(hilbert));
+                    stats.put("sorted+hilbert", stats.get("sorted+hilbert") + timeNeighbouring(tree, hilbert, epsilon));
                     // Should produce a pathological insertion order where 
                     // nodes that are close to each other are inserted in order.
-                    tree = new QuadTree(points,new Comparator<Point>() {
-        
-                        @Override
-                        public int compare(Point p, Point q) {
-                            int j = 0, k = 0, x =0;
-                            for (int i = 0; i < p.coordinates.length; i++) {
-                                int y = p.coordinates[k] ^ q.coordinates[k];
-                                if(x < y && x <(x^y)) {
-                                    j = k;
-                                    x = y;
-                                }
-                            }
-                            return p.coordinates[j] - q.coordinates[j];
-                        }
-                    });
+                    PointStore store = PointStore.fromPoints(points);
+                    tree = new QuadTree();
+                    for (int id : SpaceFillingCurve.MORTON.order(store)) {
+                        tree.add(points.get(id));
+                    }
                     if(first) {
                         System.out.format("zorder Maxdepth :%d%n", tree.maxDepth());
                         System.out.format("zorder avgdepth :%.3f%n", tree.avgDepth());
                     }
                     stats.put("zorder",new Double(stats.get("zorder")+(timeNeighbouring(tree, epsilon))));
+                    // A region quadtree's shape doesn't depend on the insertion order
+                    PRQuadTree prTree = new PRQuadTree();
+                    prTree.build(store);
+                    if(first) {
+                        System.out.format("pr Maxdepth :%d%n", prTree.maxDepth());
+                        System.out.format("pr avgdepth :%.3f%n", prTree.avgDepth());
+                    }
+                    stats.put("pr", stats.get("pr") + timeNeighbouring(prTree, store, epsilon));
                     first = false;
             }
             
@@ -311,9 +567,26 @@ public class QuadTree implements Iterable<Point> {
     }
     public static double timeNeighbouring(QuadTree tree,int epsilon) {
         double start = System.nanoTime();
+        IntList neighbours = new IntList();
         for (Point p : tree) {
-            p.addNeighbours(tree.queryCircle(epsilon,p));
-            p.clearNeighbours();
+            neighbours.clear();
+            tree.queryCircle(epsilon, p, neighbours);
+        }
+        return (System.nanoTime()-start) /1000000000.0;
+    }
+    /**
+     * @param index an index built from the store
+     * @param store the points to query
+     * @param epsilon the neighbourhood radius
+     * @return the seconds taken to find the neighbours of every point
+     */
+    public static double timeNeighbouring(SpatialIndex index, PointStore store, int epsilon) {
+        double start = System.nanoTime();
+        IntList neighbours = new IntList();
+        Point p = new Point(new int[store.dimensions()]);
+        for (int i = 0; i < store.size(); i++) {
+            neighbours.clear();
+            index.queryCircle(epsilon, store.copyTo(i, p), neighbours);
         }
         return (System.nanoTime()-start) /1000000000.0;
     }
@@ -385,36 +658,58 @@ public class QuadTree implements Iterable<Point> {
             return;
         }
     }
-    /* (non-Javadoc)
-     * @see java.lang.Iterable#iterator()
-     * Uses O(n) space because I can't figure out how to write an iterator.
+    /**
+     * Iterates over the points in the same order as {@link #allPoints()} without copying them.
+     * Only the nodes still to be visited are kept, which is at most three per level of the tree.
      */
     @Override
     public Iterator<Point> iterator() {
-        return allPoints().iterator();
+        return new QuadTreeIterator();
     }
     /**
-     * Adapted from http://www.merl.com/reports/docs/TR2002-41.pdf
+     * A preorder walk of the tree that visits NE, NW, SE then SW below each node
      * @author Jonathan
      *
-     
+     */
     private class QuadTreeIterator implements Iterator<Point> {
 
-        private QuadTreeNode next;
+        private final ArrayDeque<QuadTreeNode> pending = new ArrayDeque<QuadTreeNode>();
+        private QuadTreeNode node;
+        private int index;
         public QuadTreeIterator() {
-            next = root;
+            if(root != null)
+                pending.push(root);
+            advance();
+        }
+        /**
+         * Moves to the next node that still has points left, pushing the children of each node left behind
+         */
+        private void advance() {
+            while(node == null || index >= node.value.size()) {
+                if(pending.isEmpty()) {
+                    node = null;
+                    return;
+                }
+                node = pending.pop();
+                index = 0;
+                if(node.SW != null) pending.push(node.SW);
+                if(node.SE != null) pending.push(node.SE);
+                if(node.NW != null) pending.push(node.NW);
+                if(node.NE != null) pending.push(node.NE);
+            }
         }
-        /** {@inheritDoc} 
+        /** {@inheritDoc} */
         @Override
         public boolean hasNext() {
-            return next != null;
+            return node != null;
         }
 
         @Override
         public Point next() {
-            int 
-            Point p = next.location;
-            next = next.NE;
+            if(node == null)
+                throw new NoSuchElementException();
+            Point p = node.value.get(index++);
+            advance();
             return p;
         }
 
@@ -424,6 +719,5 @@ public class QuadTree implements Iterable<Point> {
         }
         
     }
-    */
     
 }
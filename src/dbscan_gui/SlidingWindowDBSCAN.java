@@ -0,0 +1,193 @@
+package dbscan_gui;
+
+import java.util.Random;
+
+/**
+ * Clusters a stream of time stamped 2D points, keeping only the points that arrived
+ * within a window of the latest time. Points are clustered as they arrive by an
+ * {@link OnlineDBSCAN}, and expire in batches: expired points are only removed once
+ * the expiry interval has passed since the last batch, so the cost of an eviction is
+ * shared by every point in it. A point may therefore outlive the window by up to the
+ * expiry interval. Changes to the clusters are passed to an
+ * {@link OnlineDBSCAN.ClusterListener} as they happen.
+ * @author Jonathan
+ *
+ */
+public class SlidingWindowDBSCAN {
+
+    private final OnlineDBSCAN dbscan;
+    private final long window;
+    private final long expiryInterval;
+    /**
+     * The live points in order of arrival, as a circular queue
+     */
+    private int[] ids = new int[16];
+    private long[] times = new long[16];
+    private int head = 0;
+    private int size = 0;
+    private long now = Long.MIN_VALUE;
+    private long lastExpiry = Long.MIN_VALUE;
+
+    /**
+     * @param epsilon the neighbourhood radius
+     * @param minPts the minimum number of points in a core point's neighbourhood, including itself
+     * @param window how long a point is kept after its time stamp
+     * @param expiryInterval the time between batches of expiries, 0 to expire points as soon as possible
+     */
+    public SlidingWindowDBSCAN(int epsilon, int minPts, long window, long expiryInterval) {
+        dbscan = new OnlineDBSCAN(epsilon, minPts);
+        this.window = window;
+        this.expiryInterval = expiryInterval;
+    }
+
+    /**
+     * @param listener receives changes to the clusters, may be null
+     */
+    public void setListener(OnlineDBSCAN.ClusterListener listener) {
+        dbscan.setListener(listener);
+    }
+
+    /**
+     * Adds a point, first moving the time forward to its time stamp
+     * @param time the time stamp of the point, no earlier than any point before it
+     * @param x
+     * @param y
+     * @return the id of the point, which is reused once it expires
+     * @throws IllegalArgumentException if the time stamp is earlier than the current time
+     */
+    public int add(long time, int x, int y) {
+        if(time < now)
+            throw new IllegalArgumentException("Time stamp "+time+" is before the current time "+now);
+        advance(time);
+        if(size == ids.length) {
+            // Unroll the queue into larger arrays
+            int[] newIds = new int[size*2];
+            long[] newTimes = new long[size*2];
+            for (int k = 0; k < size; k++) {
+                newIds[k] = ids[(head + k) % ids.length];
+                newTimes[k] = times[(head + k) % ids.length];
+            }
+            ids = newIds;
+            times = newTimes;
+            head = 0;
+        }
+        int id = dbscan.insert(x, y);
+        int tail = (head + size++) % ids.length;
+        ids[tail] = id;
+        times[tail] = time;
+        return id;
+    }
+
+    /**
+     * Moves the current time forward, and removes expired points if a batch is due
+     * @param time the new time, earlier times are ignored
+     * @return the number of points removed
+     */
+    public int advance(long time) {
+        if(time > now)
+            now = time;
+        if(size == 0 || times[head] > now - window)
+            return 0;
+        if(lastExpiry != Long.MIN_VALUE && now - lastExpiry < expiryInterval)
+            return 0;
+        return expire();
+    }
+
+    /**
+     * Removes every point that has expired, whether or not a batch is due
+     * @return the number of points removed
+     */
+    public int expire() {
+        lastExpiry = now;
+        int removed = 0;
+        while(size > 0 && times[head] <= now - window) {
+            dbscan.delete(ids[head]);
+            head = (head + 1) % ids.length;
+            size--;
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * @param id the id of a live point
+     * @return the cluster of the point, or {@link DBSCAN#NOISE}
+     */
+    public int cluster(int id) {
+        return dbscan.cluster(id);
+    }
+
+    /**
+     * @return the number of clusters among the live points
+     */
+    public int getClusterCount() {
+        return dbscan.getClusterCount();
+    }
+
+    /**
+     * @return the number of live points, including any that have expired but not yet been removed
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the current time
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Streams points from blobs that wander around, and reports the rate and the cluster events
+     * Usage: SlidingWindowDBSCAN [points] [window] [expiry interval]
+     * @param args
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+        long window = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+        long interval = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        SlidingWindowDBSCAN stream = new SlidingWindowDBSCAN(200, 10, window, interval);
+        final int[] events = new int[4];
+        stream.setListener(new OnlineDBSCAN.ClusterListener() {
+            @Override
+            public void clusterCreated(int cluster) {
+                events[0]++;
+            }
+            @Override
+            public void clustersMerged(int from, int into) {
+                events[1]++;
+            }
+            @Override
+            public void clusterSplit(int from, int into) {
+                events[2]++;
+            }
+            @Override
+            public void clusterDissolved(int cluster) {
+                events[3]++;
+            }
+        });
+        Random r = new Random(1);
+        int blobs = 20;
+        double[] bx = new double[blobs], by = new double[blobs];
+        for (int b = 0; b < blobs; b++) {
+            bx[b] = r.nextInt(100000);
+            by[b] = r.nextInt(100000);
+        }
+        double start = System.nanoTime();
+        for (int t = 0; t < n; t++) {
+            int b = r.nextInt(blobs);
+            bx[b] += r.nextGaussian()*20;
+            by[b] += r.nextGaussian()*20;
+            if(r.nextInt(10) == 0)
+                stream.add(t, r.nextInt(100000), r.nextInt(100000));
+            else
+                stream.add(t, (int) (bx[b] + r.nextGaussian()*1000), (int) (by[b] + r.nextGaussian()*1000));
+        }
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        System.out.format("%d points in %fs, %.0f points/s, %d live, %d clusters%n", n, seconds, n / seconds,
+                stream.size(), stream.getClusterCount());
+        System.out.format("Events: %d created, %d merged, %d split, %d dissolved%n",
+                events[0], events[1], events[2], events[3]);
+    }
+}
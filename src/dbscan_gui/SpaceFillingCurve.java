@@ -0,0 +1,153 @@
+package dbscan_gui;
+
+import java.util.Arrays;
+
+/**
+ * Curves that visit every cell of a 2^32 by 2^32 grid once, so that cells that are
+ * close along the curve are close in space. Sorting points by their index on a curve
+ * keeps nearby points together in memory.
+ * Coordinates are treated as unsigned, so they should be offsets from the smallest
+ * coordinate, as {@link #indexes(PointStore)} uses.
+ * @author Jonathan
+ *
+ */
+public enum SpaceFillingCurve {
+    /**
+     * The Z-order curve, which interleaves the bits of x and y, with x in the even bits.
+     * Every square cell whose side is a power of two is a contiguous range of the curve.
+     */
+    MORTON("Morton") {
+        @Override
+        public long index(int x, int y) {
+            return spread(x) | (spread(y) << 1);
+        }
+    },
+    /**
+     * The Hilbert curve, which unlike the Z-order curve never jumps between cells that
+     * aren't adjacent, so runs of the curve are more compact.
+     */
+    HILBERT("Hilbert") {
+        @Override
+        public long index(int x, int y) {
+            long d = 0;
+            for (int bit = 31; bit >= 0; bit--) {
+                int rx = (x >>> bit) & 1;
+                int ry = (y >>> bit) & 1;
+                d |= (long) ((3*rx) ^ ry) << (2*bit);
+                // Rotate the quarter so the curve through it starts and ends at the right corners
+                if(ry == 0) {
+                    if(rx == 1) {
+                        x = ~x;
+                        y = ~y;
+                    }
+                    int t = x;
+                    x = y;
+                    y = t;
+                }
+            }
+            return d;
+        }
+    };
+
+    private static final int DIGIT_BITS = 16;
+    private final String name;
+
+    private SpaceFillingCurve(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param x the offset on the first axis, as an unsigned int
+     * @param y the offset on the second axis, as an unsigned int
+     * @return the position of the cell along the curve, as an unsigned long
+     */
+    public abstract long index(int x, int y);
+
+    /**
+     * @param store the points
+     * @return the index of each point along the curve, by id, using the first two axes
+     * offset from their smallest coordinate
+     */
+    public long[] indexes(PointStore store) {
+        int n = store.size();
+        int yAxis = Math.min(1, store.dimensions()-1);
+        int minX = store.min(0), minY = store.min(yAxis);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = index(store.coords[0][i] - minX, store.coords[yAxis][i] - minY);
+        }
+        return keys;
+    }
+
+    /**
+     * @param store the points
+     * @return the ids of the points in the order they lie along the curve
+     */
+    public int[] order(PointStore store) {
+        return sort(indexes(store));
+    }
+
+    /**
+     * Radix sorts the keys as unsigned longs, 16 bits at a time, skipping the digits
+     * that are the same in every key. Equal keys stay in id order.
+     * @param keys the key of each id, sorted in place
+     * @return the ids in the order of their keys
+     */
+    static int[] sort(long[] keys) {
+        int n = keys.length;
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+        }
+        long[] sorted = keys;
+        long[] keyBuffer = new long[n];
+        int[] idBuffer = new int[n];
+        int[] counts = new int[(1 << DIGIT_BITS) + 1];
+        for (int shift = 0; shift < 64; shift += DIGIT_BITS) {
+            Arrays.fill(counts, 0);
+            for (int k = 0; k < n; k++) {
+                counts[digit(keys[k], shift)+1]++;
+            }
+            if(n == 0 || counts[digit(keys[0], shift)+1] == n)
+                continue;
+            for (int d = 0; d < 1 << DIGIT_BITS; d++) {
+                counts[d+1] += counts[d];
+            }
+            for (int k = 0; k < n; k++) {
+                int at = counts[digit(keys[k], shift)]++;
+                keyBuffer[at] = keys[k];
+                idBuffer[at] = ids[k];
+            }
+            long[] swapKeys = keys;
+            keys = keyBuffer;
+            keyBuffer = swapKeys;
+            int[] swapIds = ids;
+            ids = idBuffer;
+            idBuffer = swapIds;
+        }
+        if(keys != sorted)
+            System.arraycopy(keys, 0, sorted, 0, n);
+        return ids;
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) (key >>> shift) & ((1 << DIGIT_BITS) - 1);
+    }
+
+    /**
+     * @return the 32 bits of v moved to the even bits of a long
+     */
+    static long spread(int v) {
+        long x = v & 0xffffffffL;
+        x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+        x = (x | (x << 8))  & 0x00ff00ff00ff00ffL;
+        x = (x | (x << 4))  & 0x0f0f0f0f0f0f0f0fL;
+        x = (x | (x << 2))  & 0x3333333333333333L;
+        x = (x | (x << 1))  & 0x5555555555555555L;
+        return x;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,41 @@
+package dbscan_gui;
+
+/**
+ * A structure that finds the points near a given point. Points are identified by
+ * their id in the {@link PointStore} the index was built from.
+ * Queries only read the index, so an index can be shared between threads.
+ * @see IndexType
+ * @author Jonathan
+ *
+ */
+public interface SpatialIndex {
+    /**
+     * Replaces the contents of the index with every point of the store
+     * @param store the points to index
+     */
+    void build(PointStore store);
+    /**
+     * Appends the ids of all points within epsilon of p to the list,
+     * including p itself if it is in the index.
+     * @param epsilon the neighbourhood radius
+     * @param p the centre of the neighbourhood
+     * @param ids the list to add the ids to
+     */
+    void queryCircle(int epsilon, Point p, IntList ids);
+    /**
+     * Counts the points within epsilon of p, including p itself if it is in the index.
+     * The search may stop as soon as limit points have been found.
+     * @param p the centre of the neighbourhood
+     * @param epsilon the neighbourhood radius
+     * @param limit the count to stop at
+     * @return the number of points within epsilon, or at least limit if there are more
+     */
+    int countWithin(Point p, int epsilon, int limit);
+    /**
+     * Finds the k points nearest to p, including p itself if it is in the index.
+     * @param p the point to search from
+     * @param k the number of points to find
+     * @param result receives the points, nearest first
+     */
+    void nearest(Point p, int k, KNearest result);
+}
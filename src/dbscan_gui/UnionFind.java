@@ -0,0 +1,99 @@
+package dbscan_gui;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A disjoint set forest over the ints 0 to n-1 that can be shared between threads.
+ * Links and path halving are done with compare and set, so no locks are taken.
+ * The root of a set is always its smallest element, because larger roots are
+ * linked below smaller ones.
+ * @author Jonathan
+ *
+ */
+public class UnionFind {
+    private AtomicIntegerArray parent = new AtomicIntegerArray(0);
+
+    /**
+     * Creates an empty forest
+     */
+    public UnionFind() {
+    }
+    /**
+     * @param n the number of elements, each starts in its own set
+     */
+    public UnionFind(int n) {
+        reset(n);
+    }
+    /**
+     * Puts each of the elements 0 to n-1 in its own set
+     * @param n the number of elements
+     */
+    public void reset(int n) {
+        if(parent.length() < n)
+            parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+    }
+    /**
+     * Puts an element back in a set of its own. Only safe when every element
+     * of its old set is being split up too, and no other thread is using the forest.
+     * @param i an element
+     */
+    public void makeSet(int i) {
+        parent.set(i, i);
+    }
+    /**
+     * @param i an element
+     * @return the root of the set containing i
+     */
+    public int find(int i) {
+        while(true) {
+            int p = parent.get(i);
+            if(p == i)
+                return i;
+            int gp = parent.get(p);
+            if(gp != p)
+                parent.compareAndSet(i, p, gp);
+            i = gp;
+        }
+    }
+    /**
+     * Merges the sets containing a and b
+     * @param a
+     * @param b
+     * @return true if they were in different sets
+     */
+    public boolean union(int a, int b) {
+        while(true) {
+            a = find(a);
+            b = find(b);
+            if(a == b)
+                return false;
+            if(a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            // a may have stopped being a root since it was found
+            if(parent.compareAndSet(a, a, b))
+                return true;
+        }
+    }
+    /**
+     * @param a
+     * @param b
+     * @return true if a and b are in the same set
+     */
+    public boolean connected(int a, int b) {
+        while(true) {
+            a = find(a);
+            b = find(b);
+            if(a == b)
+                return true;
+            // If a is still a root then they weren't connected when b was found
+            if(parent.get(a) == a)
+                return false;
+        }
+    }
+}
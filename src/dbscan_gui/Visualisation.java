@@ -13,18 +13,11 @@ import java.awt.event.ActionListener;
 import java.awt.image.BufferStrategy;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.InputMismatchException;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Random;
-import java.util.Scanner;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import net.miginfocom.swing.MigLayout;
@@ -43,6 +36,7 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.text.DefaultCaret;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 
 /**
  * A visualisation for the DBSCAN algorithm
@@ -56,9 +50,8 @@ public class Visualisation extends JPanel {
     private static final long serialVersionUID = 1672939579062189545L;
     private JSpinner spinner_epsilon;
     private JSpinner spinner_minpts;
-    private QuadTree points = new QuadTree();
-    private ArrayList<HashSet<Point>> clusters = new ArrayList<HashSet<Point>>();
-    private HashSet<Point> noise = new HashSet<Point>();
+    private JComboBox<IndexType> combo_index;
+    private DBSCAN dbscan = new DBSCAN();
     private int epsilon = 2600;
     private int minpts = 100;
     private JTextArea log;
@@ -108,7 +101,8 @@ public class Visualisation extends JPanel {
             @Override
             public void stateChanged(ChangeEvent e) {
                 epsilon = (Integer) epsilonNumberModel.getNumber();
-                btnRecalculateClusters.setEnabled(false);
+                // Neighbours found for a larger epsilon can be truncated instead of found again
+                btnRecalculateClusters.setEnabled(points_loaded && dbscan.hasNeighbours(epsilon));
             }
         });
         inputs.add(spinner_epsilon, "cell 1 1,growx");
@@ -127,12 +121,31 @@ public class Visualisation extends JPanel {
             public void stateChanged(ChangeEvent e) {
                 minpts = (Integer) minptsNumberModel.getNumber();
                 if(points_loaded) {
+                    boolean neighboursFound = dbscan.hasNeighbours(epsilon);
                     resetClusters();
-                    btnRecalculateClusters.setEnabled(true);
+                    btnRecalculateClusters.setEnabled(neighboursFound);
+                    // Reclustering is incremental, so it can follow the spinner
+                    if(neighboursFound && !dbscan.isStreaming() && clusterRunner.isDone())
+                        runClustering();
                 }
             }
         });
 
+        JLabel lblIndex = new JLabel("Index");
+        inputs.add(lblIndex, "cell 0 3");
+
+        combo_index = new JComboBox<IndexType>(IndexType.values());
+        combo_index.setSelectedItem(dbscan.getIndexType());
+        inputs.add(combo_index, "cell 1 3,growx");
+        combo_index.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dbscan.setIndexType((IndexType) combo_index.getSelectedItem());
+                checkIndexType();
+            }
+        });
+
         JButton btnReloadFile = new JButton("Load File");
         inputs.add(btnReloadFile, "cell 0 4 2 1,growx");
         btnReloadFile.addActionListener(new ActionListener() {
@@ -214,67 +227,54 @@ public class Visualisation extends JPanel {
         
         contents.revalidate();
         clearCollections();
+        dbscan.setParallel(Runtime.getRuntime().availableProcessors() > 1);
+        dbscan.setIncremental(true);
+        dbscan.setEpsilonSweep(true);
         fc = new JFileChooser();
         fc.setCurrentDirectory(new File(System.getProperty("user.dir")));
     }
     
     
     /**
-     * Exports clusters to a file of the user's choosing. clusters are denoted with a \#n where n
-     * is the number of the cluster. It is then followed by all points in that cluster
+     * Exports clusters to a file of the user's choosing with {@link LabelFile}. A file ending in
+     * .labels is written as binary, anything else as CSV of each point and its cluster.
+     * Points are written in the order they were loaded, streamed straight from the engine's labels.
      */
     protected void exportClusters() {
-        String fname = fc.getSelectedFile().getAbsolutePath();
-        File newFile = new File(fname+".cluster");
+        File selected = fc.getSelectedFile();
+        String fname = selected == null ? "clusters" : selected.getAbsolutePath();
+        File newFile = new File(fname+".csv");
         fc.setSelectedFile(newFile);
         int retval = fc.showSaveDialog(this);
             
             if(retval == JFileChooser.APPROVE_OPTION) {
+            File f = fc.getSelectedFile();
             try {
-                File f = fc.getSelectedFile();
-                BufferedWriter out = new BufferedWriter(new FileWriter(f));
-                int i = 0;
-                for (HashSet<Point> c : clusters) {
-                    out.write("#"+i+"\n");
-                    for (Point p : c) {
-                        out.write(p+"\n");
+                PointStore points = dbscan.getPoints();
+                LabelFile.LabelWriter out = f.getName().endsWith(".labels") ? LabelFile.openBinary(f)
+                        : LabelFile.openCSV(f, points.dimensions());
+                try {
+                    for (int i = 0; i < points.size(); i++) {
+                        out.add(points, i, dbscan.label(i));
                     }
-                    i++;
-                }
-                out.write("#noise\n");
-                for(Point p: noise) {
-                    out.write(p+"\n");
+                } finally {
+                    out.close();
                 }
                 log.append("Exported to file "+f.getName()+"\n");
-                out.close();
             }
             catch (IOException e) {
-                e.printStackTrace();
+                JOptionPane.showMessageDialog(null, "Could not export to file "
+                        + f.getName()+", "+e.getMessage(), "Critical Error", JOptionPane.ERROR_MESSAGE);
             }
         } 
         
     }
 
-    /**
-     * Clears all the neighbours of all points
-     */
-    protected void resetNeighbours() {
-        resetClusters();
-        for(Point p : points) {
-            p.clearNeighbours();
-        }
-    }
-
     /**
      * Clears all clusters
      */
     private void resetClusters() {
-        for (Point p : points) {
-            p.visited = false;
-            p.inCluster = false;
-        }
-        clusters.clear();
-        noise.clear();
+        dbscan.clearClusters();
     }
     /**
      * 
@@ -289,7 +289,7 @@ public class Visualisation extends JPanel {
      */
     private void runNeighbouring() {
         disableInputs();
-        resetNeighbours();
+        resetClusters();
         if (neighbourRunner.isDone())
             neighbourRunner = new NeighbourRunner();
         neighbourRunner.execute();
@@ -313,7 +313,7 @@ public class Visualisation extends JPanel {
         clusterRunner.execute();
     }
 
-    private class NeighbourRunner extends SwingWorker<String, Object> {
+    private class NeighbourRunner extends SwingWorker<String, Object> implements DBSCAN.Monitor {
 
         NeighbourRunner() {
             this.addPropertyChangeListener(new PropertyChangeListener() {
@@ -332,28 +332,22 @@ public class Visualisation extends JPanel {
             progressBar.setValue(0);
             log.append("Finding neighbours\n");
             double start = System.nanoTime();
-            findNeighboursQuadTree();
-            log.append("Found neighbours in "
-                    + ((System.nanoTime() - start) / 1000000000.0) + "s\n");
+            if(dbscan.findNeighbours(epsilon, this))
+                log.append("Found neighbours in "
+                        + ((System.nanoTime() - start) / 1000000000.0) + "s\n");
             return null;
         }
 
-        private void findNeighboursQuadTree() {
-            int i = 0;
-            for (Point p : points) {
-                i++;
-                if(isCancelled())
-                    return;
-                p.addNeighbours(points.queryCircle(epsilon, p));
-                setProgress(100*i/points.size());
-            }
+        @Override
+        public void progress(int done, int total) {
+            setProgress(100*done/Math.max(total, 1));
         }
 
         @Override
         protected void done() { 
             if(!isCancelled()) {
                 runClustering();
-                btnRecalculateClusters.setEnabled(true);
+                btnRecalculateClusters.setEnabled(dbscan.hasNeighbours(epsilon));
             } else {
                 System.out.println("Neighbouring was cancelled");
             }
@@ -404,11 +398,9 @@ public class Visualisation extends JPanel {
      * @author Jonathan
      *
      */
-    private class ClusterRunner extends SwingWorker<String, Object> {
+    private class ClusterRunner extends SwingWorker<String, Object> implements DBSCAN.Monitor {
 
-        private int pointsClustered;
         ClusterRunner() {
-            pointsClustered = 0;
             this.addPropertyChangeListener(new PropertyChangeListener() {
                 
                 @Override
@@ -426,15 +418,23 @@ public class Visualisation extends JPanel {
             progressBar.setValue(0);
             log.append("Clustering\n");
             double start = System.nanoTime();
-            dbscan();
+            if(dbscan.getGraph().epsilon() != epsilon && dbscan.coversEpsilon(epsilon))
+                dbscan.findNeighbours(epsilon, this);
+            if(!dbscan.cluster(minpts, this))
+                return null;
             log.append(String.format("Found %d clusters from %d points in %fs.%n%d noise%n",
-                    clusters.size(), points.size(),
+                    dbscan.getClusterCount(), dbscan.getPoints().size(),
                     (System.nanoTime() - start) / 1000000000.0,
-                    noise.size()));
+                    dbscan.getNoiseCount()));
             visualisation.repaint();
             return null;
         }
 
+        @Override
+        public void progress(int done, int total) {
+            setProgress(100*done/Math.max(total, 1));
+        }
+
         @Override
         protected void done() {
             enableInputs();
@@ -443,66 +443,13 @@ public class Visualisation extends JPanel {
             visualisation.repaint();
             visualisation.validate();
         }
-        /**
-         * Helper method for DBSCAN
-         * @param p
-         * @param cluster
-         */
-        private void expandCluster(HashSet<Point> cluster, HashSet<Point> neighbourPts) {
-            Queue<Point> neighbourList = new LinkedList<Point>(neighbourPts);
-            while(!neighbourList.isEmpty()) {
-                Point p = neighbourList.remove();
-                if(!p.visited) {
-                    p.visited = true;
-                    pointsClustered++;
-                    HashSet<Point> neighbourPts_ = p.getNeighbours();
-                    if(neighbourPts_.size()+1 >= minpts) { // Add 1 because p is also a part of the cluster
-                        neighbourList.addAll(neighbourPts_);
-                    }
-                }
-                
-                if(!p.inCluster) {
-                    cluster.add(p);
-                    p.inCluster = true;
-                }
-               
-            }
-        }
-        /**
-         * Implements DBSCAN.
-         * Adapted from pseudocode at http://en.wikipedia.org/wiki/DBSCAN
-         * 
-         */
-        private void dbscan() {
-            for (Point i : points) {
-                if(isCancelled())
-                    return;
-                if (i.visited) {
-                    continue;
-                }
-                i.visited = true;
-                pointsClustered++;
-                setProgress(100*pointsClustered/points.size());
-                if (i.neighbourCount() < minpts) {
-                    noise.add(i);
-                } else {
-                    HashSet<Point> c = new HashSet<Point>(minpts);
-                    clusters.add(c);
-                    i.inCluster = true;
-                    expandCluster(c, i.getNeighbours());
-                }
-            }
-            
-        }
   }
       
     /**
      * Clears the collections containing points and clusters
      */
     private void clearCollections() {
-        points = new QuadTree();
-        clusters = new ArrayList<HashSet<Point>>();
-        noise = new HashSet<Point>();
+        dbscan.setPoints(new PointStore());
         btnRecalculateClusters.setEnabled(false);
     }
     /**
@@ -513,14 +460,17 @@ public class Visualisation extends JPanel {
         clearCollections();
         log.append("Loading "+count+" random points\n");
         Random r = new Random();
+        PointStore pointList = new PointStore(2, count);
         for (int i = 0; i < count; i++) {
-            points.add(new Point(r.nextInt(10), r.nextInt(10)));
+            pointList.add(r.nextInt(10), r.nextInt(10));
         }
+        dbscan.setPoints(pointList);
         points_loaded = true;
         tglbtnStart.setEnabled(true);
     }
     /**
      * Load points from a file of line separated points, coordinates are separated by a space.
+     * Binary point files written by {@link PointLoader#save(PointStore, File)} are also accepted.
      * The user is prompted to select a file to use.
      * @return true if the points were loaded successfully
      */
@@ -535,25 +485,16 @@ public class Visualisation extends JPanel {
             
             log.append("Loading points from " + filename + "\n");
             try {
-                Scanner in = new Scanner(new File(filename));  
-                ArrayList<Point> pointList = new ArrayList<Point>(3000);
-                while (in.hasNext()) {
-                    int x = in.nextInt();
-                    int y = in.nextInt();
-                    if(x > maxX)
-                        maxX = x;
-                    if(y > maxY)
-                        maxY = y;
-                    pointList.add(new Point(x,y));
-                    /*
-                    Scanner scan = new Scanner(in.nextLine()); 
-                    ArrayList<Integer> ps = new ArrayList<Integer>(3);
-                    while(scan.hasNext())
-                        ps.add(scan.nextInt());
-                    points.add(new Point(ps));
-                    */
+                PointStore pointList = PointLoader.load(file);
+                if(pointList.size() > 0 && pointList.dimensions() < 2)
+                    throw new InputMismatchException();
+                if(pointList.size() > 0) {
+                    maxX = Math.max(maxX, pointList.max(0));
+                    maxY = Math.max(maxY, pointList.max(1));
                 }
-                points = new QuadTree(pointList);
+                dbscan.setPoints(pointList);
+                checkIndexType();
+                loadIndexSnapshot(new File(filename + ".index"), pointList);
                 points_loaded = true;
             } catch (FileNotFoundException e) {
                 JOptionPane.showMessageDialog(null, "Could not load file "
@@ -562,6 +503,9 @@ public class Visualisation extends JPanel {
                 JOptionPane.showMessageDialog(null, "Could not load file "
                         + filename+". This file does not match input format of n" +
                         		" whitespace separated integers on each line", "Critical Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(null, "Could not load file "
+                        + filename+", "+e.getMessage(), "Critical Error", JOptionPane.ERROR_MESSAGE);
             }
         } 
         tglbtnStart.setEnabled(true);
@@ -569,6 +513,40 @@ public class Visualisation extends JPanel {
 
     }
 
+    /**
+     * Switches to a KD tree if the chosen index can't hold the loaded points,
+     * since the quadtrees only compare the first two coordinates
+     */
+    private void checkIndexType() {
+        IndexType type = dbscan.getIndexType();
+        int dimensions = dbscan.getPoints().dimensions();
+        if(!type.supports(dimensions)) {
+            log.append("A " + type + " can't index " + dimensions + " dimensional points, using a "
+                    + IndexType.KDTREE + "\n");
+            combo_index.setSelectedItem(IndexType.KDTREE);
+        }
+    }
+
+    /**
+     * Uses the index saved by {@link IndexSnapshot} next to the points file, if there is one,
+     * so it doesn't have to be rebuilt
+     * @param snapshot the saved index
+     * @param pointList the points that were loaded
+     */
+    private void loadIndexSnapshot(File snapshot, PointStore pointList) {
+        if(!snapshot.exists())
+            return;
+        try {
+            SpatialIndex index = IndexSnapshot.load(snapshot, pointList);
+            combo_index.setSelectedItem(IndexSnapshot.typeOf(index));
+            dbscan.setIndex(IndexSnapshot.typeOf(index), index);
+            log.append("Loaded " + IndexSnapshot.typeOf(index) + " from " + snapshot + "\n");
+        } catch (IOException e) {
+            log.append("Could not load index " + snapshot + ", " + e.getMessage() + "\n");
+        } catch (InputMismatchException e) {
+            log.append("Could not load index " + snapshot + ", " + e.getMessage() + "\n");
+        }
+    }
     
     /**
      * Disable the input parameters to prevent user from changing parameters while clustering is running
@@ -576,6 +554,7 @@ public class Visualisation extends JPanel {
     private void disableInputs() {
         spinner_epsilon.setEnabled(false);
         spinner_minpts.setEnabled(false);
+        combo_index.setEnabled(false);
     }
 
     /**
@@ -584,6 +563,7 @@ public class Visualisation extends JPanel {
     private void enableInputs() {
         spinner_epsilon.setEnabled(true);
         spinner_minpts.setEnabled(true);
+        combo_index.setEnabled(true);
         
     }
 
@@ -631,15 +611,19 @@ public class Visualisation extends JPanel {
             int width  = getWidth();
             int height = getHeight();
             
-            for (Point p : noise) {
-                g.setColor(Color.white);
-                drawCircle(g, p.coordinates[0]*width/maxX , p.coordinates[1]*height/maxY , 2,false, Color.white);
+            PointStore points = dbscan.getPoints();
+            int[] labels = dbscan.getLabels();
+            Color[] colours = new Color[dbscan.getClusterCount()];
+            for (int i = 0; i < colours.length; i++) {
+                colours[i] = generateRandomColor(null);
             }
-            for (HashSet<Point> cluster : clusters) {
-                Color c = generateRandomColor(null);
-                g.setColor(c);
-                for (Point point : cluster) {
-                    drawCircle(g, point.coordinates[0]*width/maxX , point.coordinates[1]*height/maxY , 2,true,c);
+            for (int i = 0; i < points.size(); i++) {
+                int x = points.get(i, 0)*width/maxX;
+                int y = points.get(i, 1)*height/maxY;
+                if(labels[i] == DBSCAN.NOISE) {
+                    drawCircle(g, x, y, 2,false, Color.white);
+                } else if(labels[i] >= 0 && labels[i] < colours.length) {
+                    drawCircle(g, x, y, 2,true,colours[labels[i]]);
                 }
             }
         }